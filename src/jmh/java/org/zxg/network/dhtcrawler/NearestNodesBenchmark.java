@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler;
+
+import java.math.BigInteger;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Nearest node selection as the find_node and get_peers replies use it,
+ * against the bucket copy and sort it replaced, once with the word-wise
+ * distance comparison and once with the original BigInteger one. The table
+ * is offered nodeCount nodes spread over every prefix length; as it holds at
+ * most K nodes per bucket, the larger counts measure a saturated table.
+ * <p>
+ * Run with {@code mvn -P jmh package && java -jar target/benchmarks.jar},
+ * adding {@code -prof gc} for allocation rates.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NearestNodesBenchmark {
+
+    private static final int TARGETS = 1024;
+
+    @Param({"1000", "100000", "1000000"})
+    public int nodeCount;
+
+    private RouteTable routeTable;
+    private byte[][] targets;
+    private int nextTarget;
+    private final Node[] nodes = new Node[Bucket.K];
+    private final Node[] bucketNodes = new Node[Bucket.K];
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(nodeCount);
+        byte[] selfNodeId = randomBytes(random, 20);
+        routeTable = new RouteTable(selfNodeId);
+        for (int i = 0; i < nodeCount; i++) {
+            byte[] id = Util.randomId(selfNodeId, random.nextInt(RouteTable.ID_BITS));
+            routeTable.add(new Node(id, "10.0.0." + (i & 0xff), 6881));
+        }
+        targets = new byte[TARGETS][];
+        for (int i = 0; i < TARGETS; i++) {
+            targets[i] = randomBytes(random, 20);
+        }
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private byte[] nextTarget() {
+        return targets[nextTarget++ & (TARGETS - 1)];
+    }
+
+    @Benchmark
+    public int heap() {
+        return routeTable.nearestNodes(nextTarget(), nodes);
+    }
+
+    @Benchmark
+    public List<Node> sortWords() {
+        byte[] target = nextTarget();
+        List<Node> candidates = candidates(target);
+        candidates.sort((node1, node2) -> RouteTable.compareDistance(target, node1.id, node2.id));
+        return candidates.subList(0, Math.min(Bucket.K, candidates.size()));
+    }
+
+    @Benchmark
+    public List<Node> sortBigIntegers() {
+        byte[] target = nextTarget();
+        BigInteger targetInt = new BigInteger(1, target);
+        List<Node> candidates = candidates(target);
+        candidates.sort((node1, node2) -> targetInt.xor(new BigInteger(1, node1.id))
+                .subtract(targetInt.xor(new BigInteger(1, node2.id))).signum());
+        return candidates.subList(0, Math.min(Bucket.K, candidates.size()));
+    }
+
+    /**
+     * Copies the target's bucket and its neighbours outwards into a list
+     * until K nodes are found, as the replaced code did.
+     */
+    private List<Node> candidates(byte[] target) {
+        List<Node> candidates = new LinkedList<>();
+        int bucketCount = routeTable.bucketCount();
+        int bucketIndex = Math.min(routeTable.prefixLength(target), bucketCount - 1);
+        addAll(candidates, bucketIndex);
+        int minBucketIndex = bucketIndex - 1;
+        int maxBucketIndex = bucketIndex + 1;
+        while (candidates.size() < Bucket.K && (minBucketIndex >= 0 || maxBucketIndex < bucketCount)) {
+            if (minBucketIndex >= 0) {
+                addAll(candidates, minBucketIndex);
+            }
+            if (maxBucketIndex < bucketCount) {
+                addAll(candidates, maxBucketIndex);
+            }
+            minBucketIndex--;
+            maxBucketIndex++;
+        }
+        return candidates;
+    }
+
+    private void addAll(List<Node> candidates, int bucketIndex) {
+        int count = routeTable.bucket(bucketIndex).nodes(bucketNodes);
+        for (int i = 0; i < count; i++) {
+            candidates.add(bucketNodes[i]);
+        }
+    }
+}
@@ -16,6 +16,8 @@
  */
 package org.zxg.network.dhtcrawler;
 
+import java.net.InetSocketAddress;
+
 /**
  *
  * @author Xianguang Zhou <xianguang.zhou@outlook.com>
@@ -26,6 +28,8 @@ public class Addr {
     public String ip;
     public int port;
 
+    private InetSocketAddress socketAddress;
+
     public Addr() {
     }
 
@@ -34,4 +38,20 @@ public class Addr {
         this.port = port;
     }
 
+    public Addr(InetSocketAddress socketAddress) {
+        this(socketAddress.getHostString(), socketAddress.getPort());
+        this.socketAddress = socketAddress;
+    }
+
+    /**
+     * @return the socket address, resolved once and cached, so ip and port
+     * must not be changed after the first call
+     */
+    public InetSocketAddress toSocketAddress() {
+        if (socketAddress == null) {
+            socketAddress = new InetSocketAddress(ip, port);
+        }
+        return socketAddress;
+    }
+
 }
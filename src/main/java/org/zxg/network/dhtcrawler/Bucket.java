@@ -16,12 +16,16 @@
  */
 package org.zxg.network.dhtcrawler;
 
-import java.math.BigInteger;
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
 import java.util.function.BiConsumer;
 
 /**
+ * Up to K nodes in a fixed array guarded by a stamped lock. Readers copy the
+ * nodes out under an optimistic read and only take the read lock when a
+ * writer got in the way. Nodes that arrive while the bucket is full wait in a
+ * ring of replacements, the most recent of which takes the place of a node
+ * that gets removed.
  *
  * @author Xianguang Zhou <xianguang.zhou@outlook.com>
  */
@@ -29,47 +33,192 @@ public class Bucket {
 
     public static final int K = 8;
 
-    public BigInteger min;
-    public BigInteger max;
-    public List<Node> nodes;
-    public long lastChangeTime;
+    final StampedLock lock = new StampedLock();
+    private final Node[] nodes = new Node[K];
+    private int size;
+    private final Node[] replacements = new Node[K];
+    private int replacementCount;
+    private int replacementEnd;
+    public volatile long lastChangeTime;
 
-    public Bucket(BigInteger min, BigInteger max) {
-        this.min = min;
-        this.max = max;
-        nodes = new CopyOnWriteArrayList<>();
+    public Bucket() {
         lastChangeTime = System.currentTimeMillis();
     }
 
-    public boolean isInRange(byte[] nodeId) {
-        BigInteger value = Util.nodeIdToInt(nodeId);
-        return this.min.compareTo(value) <= 0 && this.max.compareTo(value) >= 0;
+    /**
+     * Copies the nodes into dst, which must hold at least K nodes.
+     *
+     * @return the number of nodes copied
+     */
+    public int nodes(Node[] dst) {
+        long stamp = lock.tryOptimisticRead();
+        int count = copyNodes(dst);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                count = copyNodes(dst);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return count;
     }
 
-    public void add(Node node, BiConsumer<Node, Node> copyNewToOld) throws BucketFullException {
-        if (node.id.length == 20) {
-            if (nodes.size() < K) {
-                if (nodes.contains(node)) {
-                    nodes.stream().filter(oldNode -> node.equals(oldNode)).forEach(oldNode -> {
-                        copyNewToOld.accept(node, oldNode);
-                    });
-                } else {
-                    nodes.add(node);
+    private int copyNodes(Node[] dst) {
+        int count = Math.min(size, K);
+        System.arraycopy(nodes, 0, dst, 0, count);
+        return count;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Node find(byte[] nodeId) {
+        long stamp = lock.tryOptimisticRead();
+        Node node = findNode(nodeId);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                node = findNode(nodeId);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return node;
+    }
+
+    private Node findNode(byte[] nodeId) {
+        for (int i = 0, n = Math.min(size, K); i < n; i++) {
+            Node node = nodes[i];
+            if (node != null && Arrays.equals(node.id, nodeId)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the node seen least recently, or null if the bucket is empty
+     */
+    public Node leastRecentlySeen() {
+        long stamp = lock.readLock();
+        try {
+            Node leastRecentlySeen = null;
+            for (int i = 0; i < size; i++) {
+                if (leastRecentlySeen == null || nodes[i].lastSeenTime() < leastRecentlySeen.lastSeenTime()) {
+                    leastRecentlySeen = nodes[i];
                 }
-                lastChangeTime = System.currentTimeMillis();
-            } else {
-                throw new BucketFullException();
             }
+            return leastRecentlySeen;
+        } finally {
+            lock.unlockRead(stamp);
         }
     }
 
-    public void add(Node node) throws BucketFullException {
-        add(node, (newNode, oldNode) -> {
-        });
+    /**
+     * Must hold the write lock.
+     *
+     * @return false if the bucket is full and the node became a replacement
+     */
+    boolean add(Node node, BiConsumer<Node, Node> copyNewToOld) {
+        Node oldNode = findNode(node.id);
+        if (oldNode != null) {
+            copyNewToOld.accept(node, oldNode);
+        } else if (size < K) {
+            nodes[size++] = node;
+        } else {
+            addReplacement(node);
+            return false;
+        }
+        lastChangeTime = System.currentTimeMillis();
+        return true;
     }
 
-    public void remove(Node node) {
-        nodes.remove(node);
+    private void addReplacement(Node node) {
+        for (int i = 0; i < replacementCount; i++) {
+            int index = Math.floorMod(replacementEnd - 1 - i, K);
+            if (replacements[index].equals(node)) {
+                // refresh its contact and make it the most recent
+                removeReplacement(index);
+                break;
+            }
+        }
+        replacements[replacementEnd] = node;
+        replacementEnd = (replacementEnd + 1) % K;
+        replacementCount = Math.min(replacementCount + 1, K);
+    }
+
+    private void removeReplacement(int index) {
+        int end = replacementEnd;
+        for (int i = index, next = (i + 1) % K; next != end; i = next, next = (next + 1) % K) {
+            replacements[i] = replacements[next];
+        }
+        replacementEnd = Math.floorMod(end - 1, K);
+        replacements[replacementEnd] = null;
+        replacementCount--;
+    }
+
+    private Node pollReplacement() {
+        if (replacementCount == 0) {
+            return null;
+        }
+        replacementEnd = Math.floorMod(replacementEnd - 1, K);
+        Node node = replacements[replacementEnd];
+        replacements[replacementEnd] = null;
+        replacementCount--;
+        return node;
+    }
+
+    /**
+     * Removes the node and promotes the most recent replacement in its place.
+     * Must hold the write lock.
+     */
+    void remove(Node node) {
+        for (int i = 0; i < size; i++) {
+            if (nodes[i].equals(node)) {
+                Node replacement = pollReplacement();
+                if (replacement != null) {
+                    nodes[i] = replacement;
+                } else {
+                    nodes[i] = nodes[--size];
+                    nodes[size] = null;
+                }
+                lastChangeTime = System.currentTimeMillis();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves the nodes sharing more than prefixLength bits with the table's own
+     * id into the next bucket. Must hold the write locks of both.
+     */
+    void split(RouteTable routeTable, int prefixLength, Bucket next) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (routeTable.prefixLength(nodes[i].id) > prefixLength) {
+                next.nodes[next.size++] = nodes[i];
+            } else {
+                nodes[kept++] = nodes[i];
+            }
+        }
+        Arrays.fill(nodes, kept, size, null);
+        size = kept;
+        Node[] oldReplacements = new Node[replacementCount];
+        for (int i = 0; i < oldReplacements.length; i++) {
+            oldReplacements[oldReplacements.length - 1 - i] = pollReplacement();
+        }
+        for (Node replacement : oldReplacements) {
+            if (routeTable.prefixLength(replacement.id) > prefixLength) {
+                next.add(replacement, (newNode, oldNode) -> {
+                });
+            } else {
+                add(replacement, (newNode, oldNode) -> {
+                });
+            }
+        }
         lastChangeTime = System.currentTimeMillis();
+        next.lastChangeTime = lastChangeTime;
     }
 }
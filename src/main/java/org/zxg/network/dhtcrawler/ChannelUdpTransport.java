@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Transport on a blocking {@link DatagramChannel}. Datagrams are received
+ * into pooled direct buffers and heap data is sent through a per-thread
+ * direct buffer, so the steady state does not allocate buffers.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+public class ChannelUdpTransport implements UdpTransport {
+
+    /**
+     * StandardSocketOptions.SO_REUSEPORT only exists since Java 9.
+     */
+    private static final SocketOption<Boolean> REUSE_PORT = findReusePortOption();
+
+    private final DatagramChannel channel;
+    private final UdpMsgPool pool;
+    private final ThreadLocal<ByteBuffer> sendBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(UdpMsgPool.DEFAULT_BUFFER_SIZE));
+
+    public ChannelUdpTransport(DatagramChannel channel, UdpMsgPool pool) {
+        this.channel = channel;
+        this.pool = pool;
+    }
+
+    /**
+     * @param reusePort set SO_REUSEPORT so that several channels can be bound
+     * to the same port and the kernel spreads datagrams over them
+     */
+    public static ChannelUdpTransport open(String host, int port, UdpMsgPool pool,
+            boolean reusePort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            if (reusePort) {
+                channel.setOption(reusePortOption(), true);
+            }
+            channel.bind(new InetSocketAddress(host, port));
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        return new ChannelUdpTransport(channel, pool);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> findReusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    public static boolean isReusePortSupported() {
+        if (REUSE_PORT == null) {
+            return false;
+        }
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            return channel.supportedOptions().contains(REUSE_PORT);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private static SocketOption<Boolean> reusePortOption() throws IOException {
+        if (REUSE_PORT == null) {
+            throw new IOException("SO_REUSEPORT is not supported");
+        }
+        return REUSE_PORT;
+    }
+
+    @Override
+    public void send(Addr addr, ByteBuffer data) throws IOException {
+        int position = data.position();
+        if (data.isDirect() || data.remaining() > UdpMsgPool.DEFAULT_BUFFER_SIZE) {
+            channel.send(data, addr.toSocketAddress());
+        } else {
+            ByteBuffer sendBuffer = sendBuffers.get();
+            sendBuffer.clear();
+            sendBuffer.put(data);
+            sendBuffer.flip();
+            channel.send(sendBuffer, addr.toSocketAddress());
+        }
+        data.position(position);
+    }
+
+    @Override
+    public UdpMsg receive() throws IOException {
+        UdpMsg msg = pool.acquire();
+        try {
+            InetSocketAddress socketAddress = (InetSocketAddress) channel.receive(msg.buffer);
+            msg.buffer.flip();
+            msg.addr = new Addr(socketAddress);
+            return msg;
+        } catch (IOException | RuntimeException ex) {
+            msg.release();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(ChannelUdpTransport.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+}
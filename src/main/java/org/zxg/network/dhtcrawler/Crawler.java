@@ -17,17 +17,14 @@
 package org.zxg.network.dhtcrawler;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetSocketAddress;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.codec.binary.Hex;
@@ -45,9 +42,13 @@ import org.zxg.network.dhtcrawler.dht.DhtGetPeersReq;
 import org.zxg.network.dhtcrawler.dht.DhtMsg;
 import org.zxg.network.dhtcrawler.dht.DhtPingReply;
 import org.zxg.network.dhtcrawler.dht.DhtPingReq;
+import org.zxg.network.dhtcrawler.dht.DhtProtocolError;
 import org.zxg.network.dhtcrawler.dht.DhtReply;
 import org.zxg.network.dhtcrawler.dht.DhtReq;
+import org.zxg.network.dhtcrawler.dht.DhtSampleInfohashesReply;
+import org.zxg.network.dhtcrawler.dht.DhtSampleInfohashesReq;
 import org.zxg.network.dhtcrawler.krpc.KrpcException;
+import org.zxg.network.dhtcrawler.krpc.KrpcFilter;
 
 /**
  *
@@ -63,98 +64,507 @@ public class Crawler extends Dht {
         BOOTSTRAP_NODES.add(new Addr("router.utorrent.com", 6881));
     }
 
+    /**
+     * Bounds in seconds on the sample_infohashes interval a node asks for;
+     * BEP 51 caps it at six hours.
+     */
+    private final static int MIN_SAMPLE_INTERVAL = 60;
+    private final static int MAX_SAMPLE_INTERVAL = 21600;
+
     private String host;
     private int port;
 
     private byte[] nodeId;
     private RouteTable routeTable;
-    private Map<String, MethodAndTime> dhtReqMethodCache;
+    private TransactionTable transactionTable;
+    private NodeStore nodeStore;
 
-    private DatagramSocket socket;
-    private ReceiveThread receiveThread;
-    private Timer timer;
+    private UdpTransport[] transports;
+    private ReceiveThread[] receiveThreads;
+    private RingBuffer<UdpMsg> datagramQueue;
+    private RingBuffer<DhtMsg> msgQueue;
+    private RingBuffer<UdpMsg> sendQueue;
+    private UdpMsgPool sendPool;
+    private List<WorkerThread> workerThreads;
+    private HashedWheelTimer timer;
 
     private CrawlerListener crawlerListener;
+    private CrawlerConfig config;
 
     private BtCrawler btCrawler;
 
+    private Lookup selfLookup;
+    private volatile boolean overloaded;
+    private long lastReceivedCount;
+    private RateController rateController;
+    private long lastDroppedCount;
+    private long lastRateUpdateTime;
+    /**
+     * get_peers sent by peer searches since crawl last ran, taken out of its
+     * find_node budget.
+     */
+    private final AtomicInteger peerSearchQueries = new AtomicInteger();
+
+    private final ThreadLocal<byte[]> compactNodesBuffers = ThreadLocal.withInitial(() -> new byte[Bucket.K * 26]);
+    private final ThreadLocal<Node[]> nearestNodesBuffers = ThreadLocal.withInitial(() -> new Node[Bucket.K]);
+    private final ThreadLocal<byte[]> neighbourIdBuffers = ThreadLocal.withInitial(() -> new byte[20]);
+    private final ThreadLocal<byte[]> tokenBuffers = ThreadLocal.withInitial(() -> new byte[GetPeersTokens.TOKEN_LENGTH]);
+    private final GetPeersTokens getPeersTokens = new GetPeersTokens();
+    private final HarvestMetrics harvestMetrics = new HarvestMetrics();
+    private InfoHashFilter getPeersFilter;
+    private InfoHashFilter announcePeerFilter;
+    private InfoHashPopularity getPeersPopularity;
+    private InfoHashPopularity announcePeerPopularity;
+
     public Crawler(String host, int port, CrawlerListener crawlerListener) {
+        this(host, port, crawlerListener, new CrawlerConfig());
+    }
+
+    public Crawler(String host, int port, CrawlerListener crawlerListener, CrawlerConfig config) {
         this.host = host;
         this.port = port;
         this.crawlerListener = crawlerListener;
+        this.config = config;
     }
 
-    public void start() throws SocketException, NoSuchAlgorithmException {
-        btCrawler = new BtCrawler(this.crawlerListener);
+    public void start() throws IOException, NoSuchAlgorithmException {
+        btCrawler = new BtCrawler(this.crawlerListener, config);
         btCrawler.start();
-        nodeId = Util.randomId();
-        routeTable = new RouteTable(nodeId);
-        dhtReqMethodCache = new ConcurrentHashMap<>();
-        socket = new DatagramSocket(new InetSocketAddress(host, port));
-        receiveThread = new ReceiveThread();
-        receiveThread.start();
-        timer = new Timer(true);
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                clearDhtReqMethodCache();
+        routeTable = loadRouteTable();
+        if (routeTable == null) {
+            nodeId = Util.randomId();
+            routeTable = new RouteTable(nodeId);
+        } else {
+            nodeId = routeTable.selfNodeId;
+        }
+        transactionTable = new TransactionTable(config.transactionTableCapacity,
+                config.transactionTimeout);
+        nodeStore = config.nodeStoreFile == null ? NodeStore.allocate(config.nodeStoreCapacity)
+                : NodeStore.open(Paths.get(config.nodeStoreFile), config.nodeStoreCapacity);
+        setFilter(createFilter());
+        rateController = new RateController(config.crawlFindNodesPerSecond,
+                config.crawlMinFindNodesPerSecond, config.crawlMaxFindNodesPerSecond,
+                config.crawlRateIncrease, config.crawlRateDecreaseFactor,
+                config.crawlMinReplyRatio, config.outboundBytesPerSecond);
+        lastRateUpdateTime = System.currentTimeMillis();
+        if (config.dedupInfoHashes) {
+            getPeersFilter = new InfoHashFilter(config.dedupMemoryBytes,
+                    config.dedupFalsePositiveRate, config.dedupShards);
+            announcePeerFilter = new InfoHashFilter(config.dedupMemoryBytes,
+                    config.dedupFalsePositiveRate, config.dedupShards);
+        }
+        if (config.popularity) {
+            getPeersPopularity = new InfoHashPopularity(config.popularitySlots, config.popularitySlotDuration,
+                    config.popularitySketchDepth, config.popularitySketchWidth, config.popularityTopCapacity);
+            announcePeerPopularity = new InfoHashPopularity(config.popularitySlots, config.popularitySlotDuration,
+                    config.popularitySketchDepth, config.popularitySketchWidth, config.popularityTopCapacity);
+        }
+        timer = new HashedWheelTimer(config.timerTickDuration, config.timerTicksPerWheel);
+        timer.start();
+        transports = openTransports();
+        workerThreads = new LinkedList<>();
+        if (config.pipeline) {
+            datagramQueue = new RingBuffer<>(config.datagramQueueCapacity,
+                    config.overflowPolicy, UdpMsg::release);
+            msgQueue = new RingBuffer<>(config.msgQueueCapacity,
+                    config.overflowPolicy, (dhtMsg) -> {
+                    });
+            for (int i = 0; i < config.decodeThreads; i++) {
+                workerThreads.add(new DecodeThread(i));
             }
-        }, 900000, 900000);
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
+            for (int i = 0; i < config.handleThreads; i++) {
+                workerThreads.add(new HandleThread(i));
+            }
+        }
+        if (config.asyncSend) {
+            sendPool = new UdpMsgPool(config.sendQueueCapacity, UdpMsgPool.DEFAULT_BUFFER_SIZE,
+                    transports[0] instanceof ChannelUdpTransport);
+            sendQueue = new RingBuffer<>(config.sendQueueCapacity,
+                    config.overflowPolicy, UdpMsg::release);
+            workerThreads.add(new SendThread());
+        }
+        workerThreads.forEach(Thread::start);
+        receiveThreads = new ReceiveThread[transports.length];
+        for (int i = 0; i < transports.length; i++) {
+            receiveThreads[i] = new ReceiveThread(transports[i], i);
+            receiveThreads[i].start();
+        }
+        timer.schedulePeriodically(() -> {
+            try {
+                maintainRouteTable();
+            } catch (Exception ex) {
+                Logger.getLogger(Crawler.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }, 1000);
+        timer.schedulePeriodically(() -> {
+            try {
+                refreshBuckets();
+            } catch (Exception ex) {
+                Logger.getLogger(Crawler.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }, 60000);
+        timer.schedulePeriodically(this::updateOverloaded, 1000);
+        timer.schedulePeriodically(this::updateRate, 1000);
+        timer.schedulePeriodically(harvestMetrics::roll, 60000);
+        timer.schedulePeriodically(getPeersTokens::rotate, config.tokenRotationInterval);
+        if (config.popularity) {
+            timer.schedulePeriodically(() -> {
+                getPeersPopularity.rotate();
+                announcePeerPopularity.rotate();
+            }, config.popularitySlotDuration);
+        }
+        if (config.dedupInfoHashes) {
+            timer.schedulePeriodically(() -> {
+                getPeersFilter.rotate();
+                announcePeerFilter.rotate();
+            }, config.dedupWindow);
+        }
+        timer.schedulePeriodically(() -> {
+            try {
+                crawl();
+            } catch (Exception ex) {
+                Logger.getLogger(Crawler.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }, 100);
+        if (config.routeTableSnapshotFile != null) {
+            timer.schedulePeriodically(this::saveRouteTable, config.routeTableSnapshotInterval);
+        }
+        pingRouteTableNodes();
+    }
+
+    private RouteTable loadRouteTable() {
+        if (config.routeTableSnapshotFile == null) {
+            return null;
+        }
+        try {
+            return RouteTableSnapshot.load(Paths.get(config.routeTableSnapshotFile));
+        } catch (IOException ex) {
+            Logger.getLogger(Crawler.class.getName()).log(Level.WARNING, null, ex);
+            return null;
+        }
+    }
+
+    private void saveRouteTable() {
+        try {
+            RouteTableSnapshot.save(routeTable, Paths.get(config.routeTableSnapshotFile));
+        } catch (IOException ex) {
+            Logger.getLogger(Crawler.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Pings every node of a restored table, so that the dead ones are swapped
+     * for live ones within a few request timeouts.
+     */
+    private void pingRouteTableNodes() throws IOException {
+        long currentTime = System.currentTimeMillis();
+        Node[] nodes = new Node[Bucket.K];
+        for (int i = 0; i < routeTable.bucketCount(); i++) {
+            int count = routeTable.bucket(i).nodes(nodes);
+            for (int j = 0; j < count; j++) {
+                pingQuestionableNode(nodes[j], currentTime);
+            }
+        }
+    }
+
+    private UdpTransport[] openTransports() throws IOException {
+        if (config.shards > 1) {
+            if (ChannelUdpTransport.isReusePortSupported()) {
+                UdpTransport[] shardTransports = new UdpTransport[config.shards];
                 try {
-                    maintainRouteTable();
-                } catch (Exception ex) {
-                    Logger.getLogger(Crawler.class.getName()).log(Level.SEVERE, null, ex);
+                    for (int i = 0; i < shardTransports.length; i++) {
+                        shardTransports[i] = ChannelUdpTransport.open(host, port,
+                                new UdpMsgPool(udpMsgPoolCapacity()), true);
+                    }
+                } catch (IOException ex) {
+                    for (UdpTransport shardTransport : shardTransports) {
+                        if (shardTransport != null) {
+                            shardTransport.close();
+                        }
+                    }
+                    throw ex;
                 }
+                return shardTransports;
             }
-        }, 1000, 1000);
+            Logger.getLogger(Crawler.class.getName()).log(Level.WARNING,
+                    "SO_REUSEPORT is not supported, falling back to a single socket");
+        }
+        if (config.datagramChannel) {
+            return new UdpTransport[]{ChannelUdpTransport.open(host, port,
+                new UdpMsgPool(udpMsgPoolCapacity()), false)};
+        } else {
+            return new UdpTransport[]{new SocketUdpTransport(host, port)};
+        }
+    }
+
+    private int udpMsgPoolCapacity() {
+        // queued datagrams keep their buffers until decoded
+        return config.pipeline ? Math.max(config.udpMsgPoolCapacity, config.datagramQueueCapacity)
+                : config.udpMsgPoolCapacity;
+    }
+
+    private KrpcFilter createFilter() {
+        KrpcFilter filter = new KrpcFilter();
+        if (config.dropErrors) {
+            filter.addRule("errors", KrpcFilter.errors());
+        }
+        if (config.dropUnknownTransactionReplies) {
+            filter.addRule("unknown transaction replies", (addr, scanned) -> scanned.type() == 'r'
+                    && !transactionTable.contains(scanned.buffer, scanned.tOffset,
+                            scanned.tLength, System.currentTimeMillis()));
+        }
+        if (config.dropPingsWhenOverloaded) {
+            filter.addRule("pings when overloaded", KrpcFilter.pingsWhen(() -> overloaded));
+        }
+        return filter;
+    }
+
+    private void updateOverloaded() {
+        long receivedCount = getFilter().receivedCount();
+        overloaded = receivedCount - lastReceivedCount > config.overloadPacketsPerSecond
+                || (config.pipeline && (datagramQueue.size() > datagramQueue.capacity() / 2
+                || msgQueue.size() > msgQueue.capacity() / 2));
+        lastReceivedCount = receivedCount;
+    }
+
+    /**
+     * Feeds the rate controller the datagrams the receive pipeline dropped
+     * since the last call, counting an overloaded second as a drop too.
+     */
+    private void updateRate() {
+        long currentTime = System.currentTimeMillis();
+        long droppedCount = config.pipeline ? datagramQueue.droppedCount() + msgQueue.droppedCount() : 0;
+        long drops = droppedCount - lastDroppedCount;
+        if (overloaded) {
+            drops++;
+        }
+        rateController.update(drops, currentTime - lastRateUpdateTime);
+        lastDroppedCount = droppedCount;
+        lastRateUpdateTime = currentTime;
+    }
+
+    /**
+     * @return the controller of the crawl's find_node rate, holding the
+     * current target rate and the reason it was last adjusted
+     */
+    public RateController getRateController() {
+        return rateController;
+    }
+
+    /**
+     * @return the filter of repeated get_peers and sampled infohashes, or
+     * null when deduplication is disabled
+     */
+    public InfoHashFilter getGetPeersFilter() {
+        return getPeersFilter;
+    }
+
+    /**
+     * @return the filter of repeated announce_peer infohashes, or null when
+     * deduplication is disabled
+     */
+    public InfoHashFilter getAnnouncePeerFilter() {
+        return announcePeerFilter;
+    }
+
+    /**
+     * @return the get_peers counts per infohash, or null when popularity
+     * tracking is disabled
+     */
+    public InfoHashPopularity getGetPeersPopularity() {
+        return getPeersPopularity;
+    }
+
+    /**
+     * @return the announce_peer counts per infohash, or null when popularity
+     * tracking is disabled
+     */
+    public InfoHashPopularity getAnnouncePeerPopularity() {
+        return announcePeerPopularity;
+    }
+
+    public GetPeersTokens getGetPeersTokens() {
+        return getPeersTokens;
+    }
+
+    /**
+     * @return the metadata downloader, holding the queue and fetch counters
+     */
+    public BtCrawler getBtCrawler() {
+        return btCrawler;
+    }
+
+    public HarvestMetrics getHarvestMetrics() {
+        return harvestMetrics;
+    }
+
+    /**
+     * @return the ring between receive and decode threads, or null when the
+     * pipeline is disabled
+     */
+    public RingBuffer<UdpMsg> getDatagramQueue() {
+        return datagramQueue;
+    }
+
+    /**
+     * @return the ring between decode and handle threads, or null when the
+     * pipeline is disabled
+     */
+    public RingBuffer<DhtMsg> getMsgQueue() {
+        return msgQueue;
+    }
+
+    /**
+     * @return the ring feeding the send thread, or null when sending is
+     * synchronous
+     */
+    public RingBuffer<UdpMsg> getSendQueue() {
+        return sendQueue;
     }
 
     public void stop() {
-        timer.cancel();
-        try {
+        timer.stop();
+        for (ReceiveThread receiveThread : receiveThreads) {
             receiveThread.cancel();
-            receiveThread.join();
+        }
+        workerThreads.forEach(WorkerThread::cancel);
+        for (UdpTransport transport : transports) {
+            transport.close();
+        }
+        try {
+            for (ReceiveThread receiveThread : receiveThreads) {
+                receiveThread.join();
+            }
+            for (WorkerThread workerThread : workerThreads) {
+                workerThread.join();
+            }
         } catch (InterruptedException ex) {
             Logger.getLogger(Crawler.class.getName()).log(Level.SEVERE, null, ex);
         }
-        socket.close();
+        if (config.routeTableSnapshotFile != null) {
+            saveRouteTable();
+        }
+        nodeStore.flush();
         btCrawler.stop();
     }
 
-    private void clearDhtReqMethodCache() {
+    private void maintainRouteTable() throws IOException {
+        long currentTime = System.currentTimeMillis();
+        Node[] nodes = new Node[Bucket.K];
+        for (int i = 0; i < routeTable.bucketCount(); i++) {
+            int count = routeTable.bucket(i).nodes(nodes);
+            for (int j = 0; j < count; j++) {
+                if (!nodes[j].isGood(currentTime)) {
+                    pingQuestionableNode(nodes[j], currentTime);
+                }
+            }
+        }
+        if (selfLookup == null || selfLookup.isFinished()) {
+            selfLookup = findNodes(this.nodeId);
+        }
+    }
+
+    /**
+     * Pings the node unless a ping to it may still be outstanding; a node
+     * that keeps failing leaves the table through the request timeouts.
+     */
+    private void pingQuestionableNode(Node node, long currentTime) throws IOException {
+        if (currentTime - node.lastPingTime > config.requestTimeout * (config.requestRetries + 1)) {
+            node.lastPingTime = currentTime;
+            pingNode(new Addr(node.ip, node.port), this.nodeId, node.id);
+        }
+    }
+
+    /**
+     * Sends find_node to the next nodes due in the node store, a tenth of the
+     * controlled per second rate at a time less the get_peers peer searches
+     * sent meanwhile, and sample_infohashes to the responsive nodes whose
+     * interval has passed.
+     */
+    private void crawl() throws IOException {
         long currentTime = System.currentTimeMillis();
-        this.dhtReqMethodCache
-                .entrySet().stream().filter((entry) -> (currentTime - entry.getValue().time > 900000)).forEach((entry) -> {
-                    this.dhtReqMethodCache.remove(entry.getKey());
-                });
+        int budget = Math.max(1, rateController.rate() / 10) - peerSearchQueries.getAndSet(0);
+        if (budget > 0) {
+            nodeStore.poll(budget, currentTime,
+                    config.nodeRequeryInterval, (id, ip, port) -> crawlNode(new Addr(ip, port), id));
+        }
+        if (config.sampleInfohashes) {
+            nodeStore.pollSamples(Math.max(1, config.sampleInfohashesPerSecond / 10), currentTime,
+                    config.sampleRetryInterval, (id, ip, port) -> sampleNode(new Addr(ip, port), id));
+        }
     }
 
-    private void maintainRouteTable() throws IOException {
+    private void sampleNode(Addr addr, byte[] remoteNodeId) throws IOException {
+        DhtSampleInfohashesReq req = new DhtSampleInfohashesReq();
+        req.addr = addr;
+        if (config.neighbourIds) {
+            req.nodeId = new byte[20];
+            neighbourId(remoteNodeId, req.nodeId, 0);
+        } else {
+            req.nodeId = this.nodeId;
+        }
+        req.targetNodeId = Util.entropy(20);
+        req.remoteNodeId = remoteNodeId;
+        sendDht(req);
+    }
+
+    /**
+     * In neighbour mode the query claims an id next to the queried node's, so
+     * that it adds us to its closest bucket, and asks for a random target to
+     * learn a spread of new contacts.
+     */
+    private void crawlNode(Addr addr, byte[] remoteNodeId) throws IOException {
+        DhtFindNodeReq req = new DhtFindNodeReq();
+        req.addr = addr;
+        if (config.neighbourIds) {
+            req.nodeId = new byte[20];
+            neighbourId(remoteNodeId, req.nodeId, 0);
+            req.targetNodeId = Util.entropy(20);
+        } else {
+            req.nodeId = this.nodeId;
+            req.targetNodeId = this.nodeId;
+        }
+        req.remoteNodeId = remoteNodeId;
+        sendDht(req);
+    }
+
+    /**
+     * @return our node id, or in neighbour mode an id sharing its first bytes
+     * with the key; only valid until the next call on the same thread
+     */
+    private byte[] replyNodeId(byte[] key) {
+        if (!config.neighbourIds) {
+            return this.nodeId;
+        }
+        byte[] replyNodeId = neighbourIdBuffers.get();
+        neighbourId(key, replyNodeId, 0);
+        return replyNodeId;
+    }
+
+    /**
+     * Writes the first neighbourPrefixLength bytes of the key followed by the
+     * rest of our node id.
+     */
+    private void neighbourId(byte[] key, byte[] dst, int offset) {
+        int prefixLength = Math.max(0, Math.min(config.neighbourPrefixLength, 20));
+        System.arraycopy(key, 0, dst, offset, prefixLength);
+        System.arraycopy(this.nodeId, prefixLength, dst, offset + prefixLength, 20 - prefixLength);
+    }
+
+    private void refreshBuckets() throws IOException {
         long currentTime = System.currentTimeMillis();
-        for (Bucket bucket : routeTable.buckets) {
-            if (currentTime - bucket.lastChangeTime > 900000) {
-                byte[] randomId = Util.randomId(bucket.min, bucket.max);
-                findNodes(randomId);
-            }
-            for (Node node : bucket.nodes) {
-                if (!((currentTime - node.lastReplyTime < 900000) || (node.replied && currentTime - node.lastReqTime < 900000))) {
-                    pingNode(new Addr(node.ip, node.port), this.nodeId);
-                    bucket.nodes.remove(node);
-                }
+        for (int i = 0; i < routeTable.bucketCount(); i++) {
+            if (currentTime - routeTable.bucket(i).lastChangeTime > config.bucketRefreshInterval) {
+                findNodes(routeTable.randomId(i));
             }
         }
-        findNodes(this.nodeId);
     }
 
-    private void receive() throws IOException, DhtException, KrpcException {
-        DhtMsg dhtMsg = recvDht();
-        Node addedNode = addRouteTableNode(dhtMsg);
+    private void receive(DhtMsg dhtMsg) throws IOException {
+        addRouteTableNode(dhtMsg);
         if (dhtMsg instanceof DhtGetPeersReq) {
             DhtGetPeersReq dhtGetPeersReq = (DhtGetPeersReq) dhtMsg;
-            receive(dhtGetPeersReq, addedNode);
+            receive(dhtGetPeersReq);
         } else if (dhtMsg instanceof DhtGetPeersReply) {
             DhtGetPeersReply dhtGetPeersReply = (DhtGetPeersReply) dhtMsg;
             receive(dhtGetPeersReply);
@@ -172,213 +582,386 @@ public class Crawler extends Dht {
             receive(dhtPingReply);
         } else if (dhtMsg instanceof DhtAnnouncePeerReq) {
             DhtAnnouncePeerReq dhtAnnouncePeerReq = (DhtAnnouncePeerReq) dhtMsg;
-            receive(dhtAnnouncePeerReq, addedNode);
+            receive(dhtAnnouncePeerReq);
         } else if (dhtMsg instanceof DhtAnnouncePeerReply) {
             DhtAnnouncePeerReply dhtAnnouncePeerReply = (DhtAnnouncePeerReply) dhtMsg;
             receive(dhtAnnouncePeerReply);
+        } else if (dhtMsg instanceof DhtSampleInfohashesReply) {
+            DhtSampleInfohashesReply dhtSampleInfohashesReply = (DhtSampleInfohashesReply) dhtMsg;
+            receive(dhtSampleInfohashesReply);
         }
     }
 
-    private byte[] generateGetPeersToken() {
-        return Util.entropy(4);
+    private void receive(DhtGetPeersReq dhtGetPeersReq) throws IOException {
+        byte[] token = tokenBuffers.get();
+        getPeersTokens.token(dhtGetPeersReq.addr.ip, token, 0);
+        byte[] compactNodes = compactNodesBuffers.get();
+        int compactNodesLength = compactNearestNodes(dhtGetPeersReq.infoHash, compactNodes);
+        sendGetPeersReply(dhtGetPeersReq.addr, dhtGetPeersReq.tId, replyNodeId(dhtGetPeersReq.infoHash),
+                token, compactNodes, compactNodesLength);
+        if (getPeersPopularity != null) {
+            getPeersPopularity.add(dhtGetPeersReq.infoHash);
+        }
+        if (getPeersFilter == null || getPeersFilter.add(dhtGetPeersReq.infoHash)) {
+            harvestMetrics.getPeers();
+            crawlerListener.getPeers(dhtGetPeersReq.infoHash);
+        }
     }
 
-    private void receive(DhtGetPeersReq dhtGetPeersReq, Node addedNode) throws IOException {
-        DhtGetPeersReply dhtGetPeersReply = new DhtGetPeersReply();
-        dhtGetPeersReply.addr = dhtGetPeersReq.addr;
-        dhtGetPeersReply.tId = dhtGetPeersReq.tId;
-        dhtGetPeersReply.nodeId = this.nodeId;
-        if (addedNode != null) {
-            if (addedNode.getPeersTokens == null) {
-                addedNode.getPeersTokens = new LinkedList<>();
-            }
-            if (addedNode.getPeersTokens.isEmpty() || System.currentTimeMillis() - addedNode.getPeersTokens.get(0).time > 300000) {
-                GetPeersTokenAndTime getPeersTokenAndTime = new GetPeersTokenAndTime();
-                getPeersTokenAndTime.token = generateGetPeersToken();
-                getPeersTokenAndTime.time = System.currentTimeMillis();
-                addedNode.getPeersTokens.add(0, getPeersTokenAndTime);
-                dhtGetPeersReply.token = getPeersTokenAndTime.token;
-            } else {
-                dhtGetPeersReply.token = addedNode.getPeersTokens.get(0).token;
-            }
-        } else {
-            dhtGetPeersReply.token = generateGetPeersToken();
-        }
-        dhtGetPeersReply.nodes = new LinkedList<>();
-        routeTable.nearestNodes(dhtGetPeersReq.infoHash).stream().map(node -> {
-            CompactNodeInfo compactNodeInfo = new CompactNodeInfo();
-            compactNodeInfo.nodeId = node.id;
-            compactNodeInfo.compactIpAddressPortInfo = new CompactIpAddressPortInfo();
-            compactNodeInfo.compactIpAddressPortInfo.ip = node.ip;
-            compactNodeInfo.compactIpAddressPortInfo.port = node.port;
-            return compactNodeInfo;
-        }).forEach((compactNodeInfo) -> {
-            dhtGetPeersReply.nodes.add(compactNodeInfo);
-        });
-        sendDht(dhtGetPeersReply);
-        if (addedNode != null) {
-            long currentTime = System.currentTimeMillis();
-            while (!addedNode.getPeersTokens.isEmpty()) {
-                int lastIndex = addedNode.getPeersTokens.size() - 1;
-                GetPeersTokenAndTime lastGetPeersTokenAndTime = addedNode.getPeersTokens.get(lastIndex);
-                if (currentTime - lastGetPeersTokenAndTime.time > 600000) {
-                    addedNode.getPeersTokens.remove(lastIndex);
-                } else {
-                    break;
+    /**
+     * Starts a get_peers lookup of the infohash from the nearest nodes we
+     * know, handing the peers found to its metadata download. Skipped while
+     * peer searches have used up the find_node budget of the crawl tick.
+     */
+    private void searchPeers(byte[] infoHash) throws IOException {
+        if (peerSearchQueries.get() >= Math.max(1, rateController.rate() / 10)) {
+            return;
+        }
+        List<Node> nearestNodes = routeTable.nearestNodes(infoHash);
+        if (nearestNodes.isEmpty()) {
+            return;
+        }
+        Lookup lookup = new Lookup(infoHash, config.lookupAlpha, config.lookupMaxQueries,
+                config.lookupShortlistSize, (candidate) -> getPeers(candidate.addr,
+                        candidate.lookup.target, candidate.id, candidate), null);
+        for (Node node : nearestNodes) {
+            lookup.addSeed(new Addr(node.ip, node.port), node.id);
+        }
+        timer.newTimeout((timeout) -> lookup.expire(), config.lookupTimeout, lookup);
+        lookup.start();
+    }
+
+    private void getPeers(Addr addr, byte[] infoHash, byte[] remoteNodeId, Object context) throws IOException {
+        DhtGetPeersReq req = new DhtGetPeersReq();
+        req.addr = addr;
+        req.nodeId = this.nodeId;
+        req.infoHash = infoHash;
+        req.remoteNodeId = remoteNodeId;
+        req.context = context;
+        sendDht(req);
+    }
+
+    private void receive(DhtGetPeersReply dhtGetPeersReply) throws IOException {
+        if (dhtGetPeersReply.nodes != null) {
+            learnNodes(dhtGetPeersReply.nodes);
+        }
+        if (!(dhtGetPeersReply.req.context instanceof Lookup.Candidate)) {
+            return;
+        }
+        rateController.replyReceived();
+        Lookup.Candidate candidate = (Lookup.Candidate) dhtGetPeersReply.req.context;
+        byte[] infoHash = candidate.lookup.target;
+        if (!btCrawler.isDownloading(infoHash)) {
+            // nobody needs more peers for it
+            candidate.lookup.expire();
+            return;
+        }
+        if (dhtGetPeersReply.peers != null) {
+            for (CompactIpAddressPortInfo peer : dhtGetPeersReply.peers) {
+                if (peer.port > 0 && peer.port <= 65535) {
+                    btCrawler.offerFoundPeer(infoHash, peer.ip, peer.port);
                 }
             }
         }
-        crawlerListener.getPeers(dhtGetPeersReq.infoHash);
+        candidate.lookup.replied(candidate, dhtGetPeersReply.nodeId, dhtGetPeersReply.nodes);
     }
 
-    private void receive(DhtGetPeersReply dhtGetPeersReply) {
+    private void receive(DhtFindNodeReq dhtFindNodeReq) throws IOException {
+        byte[] compactNodes = compactNodesBuffers.get();
+        int compactNodesLength = compactNearestNodes(dhtFindNodeReq.targetNodeId, compactNodes);
+        sendFindNodeReply(dhtFindNodeReq.addr, dhtFindNodeReq.tId, replyNodeId(dhtFindNodeReq.targetNodeId),
+                compactNodes, compactNodesLength);
     }
 
-    private void receive(DhtFindNodeReq dhtFindNodeReq) throws IOException {
-        DhtFindNodeReply dhtFindNodeReply = new DhtFindNodeReply();
-        dhtFindNodeReply.addr = dhtFindNodeReq.addr;
-        dhtFindNodeReply.tId = dhtFindNodeReq.tId;
-        dhtFindNodeReply.nodeId = this.nodeId;
-        dhtFindNodeReply.nodes = new LinkedList<>();
-        routeTable.nearestNodes(dhtFindNodeReq.targetNodeId).stream().map((node) -> {
-            CompactNodeInfo compactNodeInfo = new CompactNodeInfo();
-            compactNodeInfo.nodeId = node.id;
-            compactNodeInfo.compactIpAddressPortInfo = new CompactIpAddressPortInfo();
-            compactNodeInfo.compactIpAddressPortInfo.ip = node.ip;
-            compactNodeInfo.compactIpAddressPortInfo.port = node.port;
-            return compactNodeInfo;
-        }).forEach((compactNodeInfo) -> {
-            dhtFindNodeReply.nodes.add(compactNodeInfo);
-        });
-        sendDht(dhtFindNodeReply);
+    /**
+     * In neighbour mode with a known external address, the first entries
+     * point at ourselves under ids next to the target.
+     */
+    private int compactNearestNodes(byte[] nodeIdOrInfoHash, byte[] compactNodes) {
+        int length = 0;
+        if (config.neighbourIds && config.externalIp != null) {
+            for (int i = 0; i < Math.min(config.neighbourSelfNodes, Bucket.K)
+                    && Util.compactIpPort(config.externalIp, port, compactNodes, length + 20); i++) {
+                neighbourId(nodeIdOrInfoHash, compactNodes, length);
+                compactNodes[length + 19] ^= (byte) i;
+                length += 26;
+            }
+        }
+        Node[] nodes = nearestNodesBuffers.get();
+        int count = routeTable.nearestNodes(nodeIdOrInfoHash, nodes);
+        for (int i = 0; i < count && length < compactNodes.length; i++) {
+            Node node = nodes[i];
+            if (Util.compactIpPort(node.ip, node.port, compactNodes, length + 20)) {
+                System.arraycopy(node.id, 0, compactNodes, length, 20);
+                length += 26;
+            }
+        }
+        return length;
     }
 
     private void receive(DhtFindNodeReply dhtFindNodeReply) throws IOException {
-        for (CompactNodeInfo compactNodeInfo : dhtFindNodeReply.nodes) {
-            try {
-                this.routeTable.add(new Node(compactNodeInfo.nodeId, compactNodeInfo.compactIpAddressPortInfo.ip, compactNodeInfo.compactIpAddressPortInfo.port));
-            } catch (BucketFullException ex) {
-                Logger.getLogger(Crawler.class.getName()).log(Level.SEVERE, null, ex);
+        rateController.replyReceived();
+        learnNodes(dhtFindNodeReply.nodes);
+        if (dhtFindNodeReply.req.context instanceof Lookup.Candidate) {
+            Lookup.Candidate candidate = (Lookup.Candidate) dhtFindNodeReply.req.context;
+            candidate.lookup.replied(candidate, dhtFindNodeReply.nodeId, dhtFindNodeReply.nodes);
+        }
+    }
+
+    private void learnNodes(List<CompactNodeInfo> compactNodeInfos) throws IOException {
+        for (CompactNodeInfo compactNodeInfo : compactNodeInfos) {
+            Node node = new Node(compactNodeInfo.nodeId, compactNodeInfo.compactIpAddressPortInfo.ip, compactNodeInfo.compactIpAddressPortInfo.port);
+            // not heard from yet, so questionable until it answers
+            node.lastReplyTime = 0;
+            addRouteTableNode(node, (newNode, oldNode) -> {
+            });
+            nodeStore.learn(node.id, node.ip, node.port, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * BEP 51 caps the interval at six hours.
+     */
+    private void receive(DhtSampleInfohashesReply dhtSampleInfohashesReply) throws IOException {
+        learnNodes(dhtSampleInfohashesReply.nodes);
+        // without an interval, wait as long as for a node that did not answer
+        long interval = dhtSampleInfohashesReply.interval <= 0 ? config.sampleRetryInterval
+                : Math.max(MIN_SAMPLE_INTERVAL, Math.min(dhtSampleInfohashesReply.interval, MAX_SAMPLE_INTERVAL)) * 1000L;
+        nodeStore.sampled(dhtSampleInfohashesReply.nodeId, System.currentTimeMillis() + interval);
+        for (byte[] infoHash : dhtSampleInfohashesReply.samples) {
+            if (getPeersFilter == null || getPeersFilter.add(infoHash)) {
+                harvestMetrics.sample();
+                crawlerListener.getPeers(infoHash);
             }
-            findNode(new Addr(compactNodeInfo.compactIpAddressPortInfo.ip, compactNodeInfo.compactIpAddressPortInfo.port), this.nodeId);
         }
     }
 
     private void receive(DhtPingReq dhtPingReq) throws IOException {
-        DhtPingReply dhtPingReply = new DhtPingReply();
-        dhtPingReply.addr = dhtPingReq.addr;
-        dhtPingReply.tId = dhtPingReq.tId;
-        dhtPingReply.nodeId = this.nodeId;
-        sendDht(dhtPingReply);
+        sendPingReply(dhtPingReq.addr, dhtPingReq.tId, replyNodeId(dhtPingReq.nodeId));
     }
 
     private void receive(DhtPingReply dhtPingReply) {
     }
 
-    private void receive(DhtAnnouncePeerReq dhtAnnouncePeerReq, Node addedNode) throws IOException {
-        DhtAnnouncePeerReply dhtAnnouncePeerReply = new DhtAnnouncePeerReply();
-        dhtAnnouncePeerReply.addr = dhtAnnouncePeerReq.addr;
-        dhtAnnouncePeerReply.tId = dhtAnnouncePeerReq.tId;
-        dhtAnnouncePeerReply.nodeId = this.nodeId;
-        sendDht(dhtAnnouncePeerReply);
-//        System.out.println("announce peer:" + Hex.encodeHexString(dhtAnnouncePeerReq.infoHash) + " " + Hex.encodeHexString(dhtAnnouncePeerReq.token)); // TODO
-//        if (addedNode != null && addedNode.getPeersTokens != null) {
-//            long currentTime = System.currentTimeMillis();
-//            for (GetPeersTokenAndTime getPeersTokenAndTime : addedNode.getPeersTokens) {
-//                System.out.println("cached token:" + Hex.encodeHexString(getPeersTokenAndTime.token));
-//                if (currentTime - getPeersTokenAndTime.time > 600000) {
-//                    break;
-//                }
-//                if (Arrays.equals(getPeersTokenAndTime.token, dhtAnnouncePeerReq.token)) {
-        if (crawlerListener.announcePeer(dhtAnnouncePeerReq.infoHash)) {
-            btCrawler.downloadMetaData(dhtAnnouncePeerReq.infoHash, dhtAnnouncePeerReq.addr.ip, dhtAnnouncePeerReq.port, dhtAnnouncePeerReq.nodeId);
-        }
-//                    break;
-//                }
-//            }
-//        }
+    private void receive(DhtAnnouncePeerReq dhtAnnouncePeerReq) throws IOException {
+        if (config.checkAnnounceTokens
+                && !getPeersTokens.check(dhtAnnouncePeerReq.addr.ip, dhtAnnouncePeerReq.token)) {
+            DhtProtocolError dhtProtocolError = new DhtProtocolError();
+            dhtProtocolError.addr = dhtAnnouncePeerReq.addr;
+            dhtProtocolError.tId = dhtAnnouncePeerReq.tId;
+            dhtProtocolError.msg = "bad token";
+            sendDht(dhtProtocolError);
+            return;
+        }
+        sendAnnouncePeerReply(dhtAnnouncePeerReq.addr, dhtAnnouncePeerReq.tId, replyNodeId(dhtAnnouncePeerReq.infoHash));
+        if (announcePeerPopularity != null) {
+            announcePeerPopularity.add(dhtAnnouncePeerReq.infoHash);
+        }
+        int peerPort = dhtAnnouncePeerReq.impliedPort ? dhtAnnouncePeerReq.addr.port : dhtAnnouncePeerReq.port;
+        long priority = metaDataPriority(dhtAnnouncePeerReq.infoHash);
+        if (btCrawler.offerPeer(dhtAnnouncePeerReq.infoHash, dhtAnnouncePeerReq.addr.ip, peerPort, priority)) {
+            // its download is already under way and the listener has heard of it
+            return;
+        }
+        if (announcePeerFilter != null && !announcePeerFilter.add(dhtAnnouncePeerReq.infoHash)) {
+            return;
+        }
+        harvestMetrics.announcePeer();
+        if (crawlerListener.announcePeer(dhtAnnouncePeerReq.infoHash)
+                && btCrawler.downloadMetaData(dhtAnnouncePeerReq.infoHash, dhtAnnouncePeerReq.addr.ip, peerPort,
+                        priority)
+                && config.metaDataPeerSearch) {
+            searchPeers(dhtAnnouncePeerReq.infoHash);
+        }
+    }
+
+    /**
+     * @return how often the infohash was asked for and announced in the
+     * last hour, or 0 without popularity tracking
+     */
+    private long metaDataPriority(byte[] infoHash) {
+        if (getPeersPopularity == null) {
+            return 0;
+        }
+        return getPeersPopularity.count(infoHash, 3600000) + announcePeerPopularity.count(infoHash, 3600000);
     }
 
     private void receive(DhtAnnouncePeerReply dhtAnnouncePeerReply) {
     }
 
-    private Node addRouteTableNode(DhtMsg dhtMsg) {
+    private Node addRouteTableNode(DhtMsg dhtMsg) throws IOException {
         final Ref<Node> addedNodeRef = new Ref<>();
-        try {
-            if (dhtMsg instanceof DhtReq) {
-                DhtReq dhtReq = (DhtReq) dhtMsg;
-                addedNodeRef.target = new Node(dhtReq.nodeId, dhtReq.addr.ip, dhtReq.addr.port);
-                routeTable.add(addedNodeRef.target, (newNode, oldNode) -> {
-                    oldNode.ip = newNode.ip;
-                    oldNode.port = newNode.port;
-                    oldNode.lastReqTime = newNode.lastReqTime;
-                    addedNodeRef.target = oldNode;
-                });
-            } else if (dhtMsg instanceof DhtReply) {
-                DhtReply dhtReply = (DhtReply) dhtMsg;
-                addedNodeRef.target = new Node(dhtReply.nodeId, dhtReply.addr.ip, dhtReply.addr.port);
-                routeTable.add(addedNodeRef.target, (newNode, oldNode) -> {
-                    oldNode.ip = newNode.ip;
-                    oldNode.port = newNode.port;
-                    oldNode.lastReplyTime = newNode.lastReplyTime;
-                    oldNode.replied = true;
-                    addedNodeRef.target = oldNode;
-                });
+        if (dhtMsg instanceof DhtReq) {
+            DhtReq dhtReq = (DhtReq) dhtMsg;
+            nodeStore.learn(dhtReq.nodeId, dhtReq.addr.ip, dhtReq.addr.port, System.currentTimeMillis());
+            addedNodeRef.target = new Node(dhtReq.nodeId, dhtReq.addr.ip, dhtReq.addr.port);
+            // it has only queried us, so questionable until it answers
+            addedNodeRef.target.lastReplyTime = 0;
+            if (!addRouteTableNode(addedNodeRef.target, (newNode, oldNode) -> {
+                oldNode.ip = newNode.ip;
+                oldNode.port = newNode.port;
+                oldNode.lastReqTime = newNode.lastReqTime;
+                addedNodeRef.target = oldNode;
+            })) {
+                addedNodeRef.target = null;
+            }
+        } else if (dhtMsg instanceof DhtReply) {
+            DhtReply dhtReply = (DhtReply) dhtMsg;
+            nodeStore.seen(dhtReply.nodeId, dhtReply.addr.ip, dhtReply.addr.port, System.currentTimeMillis());
+            addedNodeRef.target = new Node(dhtReply.nodeId, dhtReply.addr.ip, dhtReply.addr.port);
+            addedNodeRef.target.replied = true;
+            if (!addRouteTableNode(addedNodeRef.target, (newNode, oldNode) -> {
+                oldNode.ip = newNode.ip;
+                oldNode.port = newNode.port;
+                oldNode.lastReplyTime = newNode.lastReplyTime;
+                oldNode.replied = true;
+                oldNode.failedRequests = 0;
+                addedNodeRef.target = oldNode;
+            })) {
+                addedNodeRef.target = null;
             }
-        } catch (BucketFullException ex) {
-            addedNodeRef.target = null;
-            Logger.getLogger(Crawler.class.getName()).log(Level.SEVERE, null, ex);
         }
         return addedNodeRef.target;
     }
 
-    private void pingNode(Addr addr, byte[] nodeId) throws IOException {
+    /**
+     * When the node's bucket is full it waits as a replacement and the least
+     * recently seen node of the bucket is pinged if it is questionable, so
+     * that it is swapped out if it does not answer.
+     *
+     * @return false if the node only became a replacement
+     */
+    private boolean addRouteTableNode(Node node, BiConsumer<Node, Node> copyNewToOld) throws IOException {
+        if (routeTable.add(node, copyNewToOld)) {
+            return true;
+        }
+        long currentTime = System.currentTimeMillis();
+        Node leastRecentlySeen = routeTable.leastRecentlySeen(node.id);
+        if (leastRecentlySeen != null && !leastRecentlySeen.isGood(currentTime)) {
+            pingQuestionableNode(leastRecentlySeen, currentTime);
+        }
+        return false;
+    }
+
+    private void pingNode(Addr addr, byte[] nodeId, byte[] remoteNodeId) throws IOException {
         DhtPingReq req = new DhtPingReq();
         req.addr = addr;
         req.nodeId = nodeId;
+        req.remoteNodeId = remoteNodeId;
         sendDht(req);
     }
 
-    private void findNodes(byte[] targetNodeId) throws IOException {
+    /**
+     * Starts an iterative lookup of the target from the nearest nodes we
+     * know, or from the bootstrap nodes while the route table is empty.
+     */
+    private Lookup findNodes(byte[] targetNodeId) throws IOException {
+        Lookup lookup = new Lookup(targetNodeId, config.lookupAlpha, config.lookupMaxQueries,
+                config.lookupShortlistSize, (candidate) -> findNode(candidate.addr,
+                        candidate.lookup.target, candidate.id, candidate), null);
         List<Node> nearestNodes = routeTable.nearestNodes(targetNodeId);
         if (nearestNodes.isEmpty()) {
             for (Addr addr : BOOTSTRAP_NODES) {
-                findNode(addr, targetNodeId);
+                lookup.addSeed(addr, null);
             }
         } else {
             for (Node node : nearestNodes) {
-                findNode(new Addr(node.ip, node.port), targetNodeId);
+                lookup.addSeed(new Addr(node.ip, node.port), node.id);
             }
         }
+        timer.newTimeout((timeout) -> lookup.expire(), config.lookupTimeout, lookup);
+        lookup.start();
+        return lookup;
+    }
+
+    private void findNode(Addr addr, byte[] targetNodeId, byte[] remoteNodeId) throws IOException {
+        findNode(addr, targetNodeId, remoteNodeId, null);
     }
 
-    private void findNode(Addr addr, byte[] targetNodeId) throws IOException {
+    private void findNode(Addr addr, byte[] targetNodeId, byte[] remoteNodeId, Object context) throws IOException {
         DhtFindNodeReq req = new DhtFindNodeReq();
         req.addr = addr;
         req.nodeId = this.nodeId;
         req.targetNodeId = targetNodeId;
+        req.remoteNodeId = remoteNodeId;
+        req.context = context;
         sendDht(req);
     }
 
-    private class ReceiveThread extends Thread {
+    private void requestTimedOut(HashedWheelTimer.Timeout timeout) throws IOException {
+        DhtReq req = (DhtReq) timeout.attachment;
+        if (transactionTable.remove(req.tId, System.currentTimeMillis()) == null) {
+            // answered meanwhile
+            return;
+        }
+        transactionTable.detach(req.tId);
+        if (req instanceof DhtSampleInfohashesReq) {
+            // nodes without BEP 51 ignore it, which says nothing about their
+            // liveness; pollSamples already put the next try off
+            return;
+        }
+        if (req.attempts <= config.requestRetries) {
+            resend(req);
+            return;
+        }
+        if (req.context instanceof Lookup.Candidate) {
+            Lookup.Candidate candidate = (Lookup.Candidate) req.context;
+            candidate.lookup.failed(candidate);
+        }
+        if (req.remoteNodeId != null) {
+            nodeStore.failed(req.remoteNodeId, config.nodeStoreMaxFailures);
+            Node node = routeTable.find(req.remoteNodeId);
+            if (node != null && ++node.failedRequests >= config.maxNodeFailures) {
+                routeTable.remove(node);
+            }
+        }
+    }
+
+    private void resend(DhtReq req) throws IOException {
+        if (req instanceof DhtPingReq) {
+            sendDht((DhtPingReq) req);
+        } else if (req instanceof DhtFindNodeReq) {
+            sendDht((DhtFindNodeReq) req);
+        } else if (req instanceof DhtGetPeersReq) {
+            sendDht((DhtGetPeersReq) req);
+        } else if (req instanceof DhtAnnouncePeerReq) {
+            sendDht((DhtAnnouncePeerReq) req);
+        } else if (req instanceof DhtSampleInfohashesReq) {
+            sendDht((DhtSampleInfohashesReq) req);
+        }
+    }
+
+    private abstract class WorkerThread extends Thread {
 
         private volatile boolean running;
 
-        public ReceiveThread() {
-            super();
+        public WorkerThread(String name) {
+            super(name);
             setDaemon(true);
             running = true;
         }
 
+        /**
+         * @return false if there was nothing to do
+         */
+        protected abstract boolean work() throws Exception;
+
         @Override
         public void run() {
+            int idleRounds = 0;
             while (running) {
                 try {
-                    receive();
+                    if (work()) {
+                        idleRounds = 0;
+                    } else if (++idleRounds < 64) {
+                        Thread.yield();
+                    } else {
+                        LockSupport.parkNanos(100000);
+                    }
                 } catch (DhtException | KrpcException | IOException ex) {
-                    Logger.getLogger(ReceiveThread.class.getName()).log(Level.FINE, null, ex);
+                    Logger.getLogger(getClass().getName()).log(Level.FINE, null, ex);
                 } catch (Exception ex) {
-                    Logger.getLogger(ReceiveThread.class.getName()).log(Level.SEVERE, null, ex);
+                    Logger.getLogger(getClass().getName()).log(Level.SEVERE, null, ex);
                 }
             }
         }
@@ -388,8 +971,117 @@ public class Crawler extends Dht {
         }
     }
 
+    private class ReceiveThread extends WorkerThread {
+
+        private final UdpTransport transport;
+
+        public ReceiveThread(UdpTransport transport, int shard) {
+            super("dht-receive-" + shard);
+            this.transport = transport;
+        }
+
+        @Override
+        protected boolean work() throws Exception {
+            UdpMsg udpMsg = transport.receive();
+            if (config.pipeline) {
+                datagramQueue.offer(udpMsg);
+            } else {
+                DhtMsg dhtMsg = decodeDht(udpMsg);
+                if (dhtMsg != null) {
+                    receive(dhtMsg);
+                }
+            }
+            return true;
+        }
+    }
+
+    private class DecodeThread extends WorkerThread {
+
+        public DecodeThread(int index) {
+            super("dht-decode-" + index);
+        }
+
+        @Override
+        protected boolean work() throws Exception {
+            UdpMsg udpMsg = datagramQueue.poll();
+            if (udpMsg == null) {
+                return false;
+            }
+            DhtMsg dhtMsg = decodeDht(udpMsg);
+            if (dhtMsg != null) {
+                msgQueue.offer(dhtMsg);
+            }
+            return true;
+        }
+    }
+
+    private class HandleThread extends WorkerThread {
+
+        public HandleThread(int index) {
+            super("dht-handle-" + index);
+        }
+
+        @Override
+        protected boolean work() throws Exception {
+            DhtMsg dhtMsg = msgQueue.poll();
+            if (dhtMsg == null) {
+                return false;
+            }
+            receive(dhtMsg);
+            return true;
+        }
+    }
+
+    private class SendThread extends WorkerThread {
+
+        private long tokens;
+        private long lastRefillTime;
+
+        public SendThread() {
+            super("dht-send");
+            lastRefillTime = System.nanoTime();
+        }
+
+        @Override
+        protected boolean work() throws Exception {
+            int batchSize = config.sendBatchSize;
+            if (config.outboundPacketsPerSecond > 0) {
+                refill(batchSize);
+                batchSize = (int) Math.min(batchSize, tokens);
+            }
+            int sent = 0;
+            UdpMsg udpMsg;
+            while (sent < batchSize && (udpMsg = sendQueue.poll()) != null) {
+                try {
+                    transports[0].send(udpMsg.addr, udpMsg.buffer);
+                } finally {
+                    udpMsg.release();
+                }
+                sent++;
+            }
+            tokens -= sent;
+            return sent > 0;
+        }
+
+        private void refill(int maxTokens) {
+            long currentTime = System.nanoTime();
+            long newTokens = (currentTime - lastRefillTime) * config.outboundPacketsPerSecond / 1000000000L;
+            if (newTokens > 0) {
+                if (tokens + newTokens >= maxTokens) {
+                    tokens = maxTokens;
+                    lastRefillTime = currentTime;
+                } else {
+                    tokens += newTokens;
+                    lastRefillTime += newTokens * 1000000000L / config.outboundPacketsPerSecond;
+                }
+            }
+        }
+    }
+
     public void join() throws InterruptedException {
-        receiveThread.join();
+        for (ReceiveThread receiveThread : receiveThreads) {
+            receiveThread.join();
+        }
     }
 
     public static void main(String[] args) throws Exception {
@@ -409,50 +1101,68 @@ public class Crawler extends Dht {
         clawer.join();
     }
 
+    /**
+     * Receive threads answer through their own shard socket, every other
+     * thread uses the first one.
+     */
+    private UdpTransport currentTransport() {
+        Thread thread = Thread.currentThread();
+        if (thread instanceof ReceiveThread) {
+            return ((ReceiveThread) thread).transport;
+        }
+        return transports[0];
+    }
+
     @Override
     protected void sendUdp(UdpMsg msg) throws IOException {
-        DatagramPacket datagramPacket = new DatagramPacket(msg.data,
-                msg.data.length);
-        datagramPacket.setSocketAddress(new InetSocketAddress(msg.addr.ip,
-                msg.addr.port));
-        socket.send(datagramPacket);
+        sendUdp(msg.addr, ByteBuffer.wrap(msg.data));
+    }
+
+    @Override
+    protected void sendUdp(Addr addr, ByteBuffer data) throws IOException {
+        rateController.bytesSent(data.remaining());
+        if (sendQueue != null && data.remaining() <= sendPool.bufferSize()) {
+            UdpMsg udpMsg = sendPool.acquire();
+            int position = data.position();
+            udpMsg.buffer.put(data).flip();
+            data.position(position);
+            udpMsg.addr = addr;
+            sendQueue.offer(udpMsg);
+        } else {
+            currentTransport().send(addr, data);
+        }
     }
 
     @Override
     protected UdpMsg recvUdp() throws IOException {
-        byte[] buffer = new byte[65536];
-        DatagramPacket datagramPacket = new DatagramPacket(buffer,
-                buffer.length);
-        socket.receive(datagramPacket);
-        UdpMsg msg = new UdpMsg();
-        msg.data = new byte[datagramPacket.getLength()];
-        System.arraycopy(datagramPacket.getData(), datagramPacket.getOffset(),
-                msg.data, 0, datagramPacket.getLength());
-        InetSocketAddress socketAddress = (InetSocketAddress) datagramPacket
-                .getSocketAddress();
-        msg.addr = new Addr(socketAddress.getHostString(), socketAddress.getPort());
-        return msg;
+        return currentTransport().receive();
     }
 
     @Override
-    protected void setDhtReqMethod(Addr addr, byte[] tid, String method) {
-//        dhtReqMethodCache.put(
-//                addr.ip + ":" + addr.port + "/"
-//                + Hex.encodeHexString(tid), new MethodAndTime(method,
-//                        System.currentTimeMillis()));
-        dhtReqMethodCache.put(Hex.encodeHexString(tid), new MethodAndTime(method,
-                System.currentTimeMillis()));
+    protected byte[] addDhtReqMethod(DhtReq req, String method) {
+        byte[] tid = transactionTable.add(method, System.currentTimeMillis());
+        req.tId = tid;
+        req.attempts++;
+        if (req instanceof DhtFindNodeReq) {
+            rateController.querySent();
+        } else if (req instanceof DhtGetPeersReq && req.context instanceof Lookup.Candidate) {
+            rateController.querySent();
+            peerSearchQueries.incrementAndGet();
+        }
+        transactionTable.attach(tid, timer.newTimeout(this::requestTimedOut, config.requestTimeout, req));
+        return tid;
     }
 
     @Override
-    protected String removeDhtReqMethod(Addr addr, byte[] tid) {
-//        MethodAndTime methodAndTime = dhtReqMethodCache.remove(addr.ip + ":" + addr.port
-//                + "/" + Hex.encodeHexString(tid));
-        MethodAndTime methodAndTime = dhtReqMethodCache.remove(Hex.encodeHexString(tid));
-        if (methodAndTime != null) {
-            return methodAndTime.method;
-        } else {
-            return "unknown";
+    protected DhtReq removeDhtReq(Addr addr, byte[] tid) {
+        if (transactionTable.remove(tid, System.currentTimeMillis()) == null) {
+            return null;
+        }
+        HashedWheelTimer.Timeout timeout = (HashedWheelTimer.Timeout) transactionTable.detach(tid);
+        if (timeout == null) {
+            return null;
         }
+        timeout.cancel();
+        return (DhtReq) timeout.attachment;
     }
 }
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler;
+
+/**
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+public class CrawlerConfig {
+
+    /**
+     * Use the NIO {@link ChannelUdpTransport} instead of a
+     * {@link java.net.DatagramSocket}.
+     */
+    public boolean datagramChannel = false;
+    public int udpMsgPoolCapacity = 4096;
+    /**
+     * Number of sockets bound to the port with SO_REUSEPORT, each with its
+     * own receive thread. More than one implies the channel transport.
+     */
+    public int shards = 1;
+    /**
+     * Hand datagrams from the receive threads to decode threads and decoded
+     * messages to handle threads through bounded rings, instead of doing
+     * everything on the receive thread.
+     */
+    public boolean pipeline = false;
+    public int decodeThreads = 2;
+    public int handleThreads = 2;
+    public int datagramQueueCapacity = 65536;
+    public int msgQueueCapacity = 65536;
+    public OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+    /**
+     * Queue outbound datagrams to a dedicated send thread instead of sending
+     * on the calling thread.
+     */
+    public boolean asyncSend = false;
+    public int sendQueueCapacity = 65536;
+    public int sendBatchSize = 256;
+    /**
+     * Outbound datagrams per second paced by the send thread, 0 for no limit.
+     */
+    public int outboundPacketsPerSecond = 0;
+
+    public boolean dropErrors = true;
+    public boolean dropUnknownTransactionReplies = true;
+    public boolean dropPingsWhenOverloaded = true;
+    /**
+     * Inbound datagrams per second above which the crawler considers itself
+     * overloaded.
+     */
+    public int overloadPacketsPerSecond = 50000;
+    /**
+     * Outstanding requests kept for matching replies; a slot is reused after
+     * this many further requests.
+     */
+    public int transactionTableCapacity = 1 << 20;
+    /**
+     * Milliseconds after which a reply to a request is no longer accepted.
+     */
+    public long transactionTimeout = 60000;
+
+    /**
+     * Milliseconds after which an unanswered request is retried or, once the
+     * retries are used up, counted as a failure of the queried node. Should
+     * not exceed the transaction timeout.
+     */
+    public long requestTimeout = 5000;
+    public int requestRetries = 1;
+    /**
+     * Consecutive failed requests after which a node leaves the route table.
+     */
+    public int maxNodeFailures = 2;
+    /**
+     * Milliseconds a bucket may go unchanged before it is refreshed with a
+     * lookup of a random id in its range.
+     */
+    public long bucketRefreshInterval = 900000;
+    public long timerTickDuration = 100;
+    public int timerTicksPerWheel = 512;
+    /**
+     * File the route table is saved to periodically and on stop, and
+     * restored from on start; null to always start from scratch.
+     */
+    public String routeTableSnapshotFile = null;
+    public long routeTableSnapshotInterval = 300000;
+    /**
+     * Node contacts remembered for crawling, rounded down to a power of two;
+     * each takes 40 bytes off the heap.
+     */
+    public int nodeStoreCapacity = 1 << 20;
+    /**
+     * File the node store is memory-mapped from so that it survives restarts;
+     * null to keep it in direct memory.
+     */
+    public String nodeStoreFile = null;
+    /**
+     * Consecutive unanswered queries after which the node store stops
+     * crawling a node until it talks to us again; each one before that
+     * doubles the time until the node is queried again.
+     */
+    public int nodeStoreMaxFailures = 4;
+    /**
+     * Starting find_node rate of the crawl, adjusted at runtime between
+     * crawlMinFindNodesPerSecond and crawlMaxFindNodesPerSecond.
+     */
+    public int crawlFindNodesPerSecond = 1000;
+    public int crawlMinFindNodesPerSecond = 100;
+    public int crawlMaxFindNodesPerSecond = 10000;
+    /**
+     * Queries per second added after each second without trouble.
+     */
+    public int crawlRateIncrease = 100;
+    /**
+     * Factor the rate is multiplied by on drops, a low reply ratio or
+     * exceeding outboundBytesPerSecond.
+     */
+    public double crawlRateDecreaseFactor = 0.5;
+    /**
+     * Share of find_node queries that must be answered for the rate to grow.
+     */
+    public double crawlMinReplyRatio = 0.1;
+    /**
+     * Outbound bandwidth ceiling in bytes per second; 0 for none.
+     */
+    public long outboundBytesPerSecond = 0;
+    /**
+     * Milliseconds before a node that answered is sent find_node again.
+     */
+    public long nodeRequeryInterval = 900000;
+    /**
+     * Sweeps responsive nodes with BEP 51 sample_infohashes, reporting the
+     * sampled infohashes through CrawlerListener.getPeers.
+     */
+    public boolean sampleInfohashes = true;
+    public int sampleInfohashesPerSecond = 200;
+    /**
+     * Milliseconds before a node that did not answer sample_infohashes is
+     * tried again; a node that answered is sampled again after the interval
+     * it asked for.
+     */
+    public long sampleRetryInterval = 3600000;
+    /**
+     * Drops get_peers and announce_peer infohashes already seen within
+     * dedupWindow before they reach the listener and the metadata download.
+     */
+    public boolean dedupInfoHashes = true;
+    /**
+     * Milliseconds an infohash is remembered for at least; at most twice as
+     * long.
+     */
+    public long dedupWindow = 3600000;
+    /**
+     * Bytes taken by each of the get_peers and announce_peer filters.
+     */
+    public long dedupMemoryBytes = 16 << 20;
+    public double dedupFalsePositiveRate = 0.001;
+    public int dedupShards = 64;
+    /**
+     * Tracks how often each infohash is asked for in get_peers and
+     * announce_peer, over popularitySlots slots of popularitySlotDuration
+     * milliseconds.
+     */
+    public boolean popularity = true;
+    public int popularitySlots = 12;
+    public long popularitySlotDuration = 300000;
+    public int popularitySketchDepth = 4;
+    /**
+     * Counters per sketch row; estimates exceed the true counts by about
+     * e / width of the events in the window.
+     */
+    public int popularitySketchWidth = 1 << 16;
+    /**
+     * Infohashes each slot keeps as candidates for the top list.
+     */
+    public int popularityTopCapacity = 2048;
+    /**
+     * Milliseconds between get_peers token key rotations; a token stays
+     * valid for one to two of them.
+     */
+    public long tokenRotationInterval = 300000;
+    /**
+     * Answers announce_peer carrying a token we did not hand to its address
+     * with a protocol error instead of reporting it.
+     */
+    public boolean checkAnnounceTokens = true;
+    /**
+     * Event loop threads of the metadata fetcher.
+     */
+    public int metaDataFetchThreads = 2;
+    /**
+     * Milliseconds for a peer to accept the connection and answer the
+     * BitTorrent handshake.
+     */
+    public long metaDataConnectTimeout = 5000;
+    /**
+     * Milliseconds for a whole metadata fetch.
+     */
+    public long metaDataFetchTimeout = 30000;
+    /**
+     * Largest metadata in bytes a peer may announce.
+     */
+    public int metaDataMaxSize = 4 << 20;
+    /**
+     * Metadata downloads running at once.
+     */
+    public int metaDataConcurrency = 512;
+    /**
+     * Metadata downloads waiting for a free slot, the least popular ones
+     * making way when it is full.
+     */
+    public int metaDataQueueCapacity = 8192;
+    /**
+     * Peers a metadata download tries at most.
+     */
+    public int metaDataMaxPeers = 16;
+    /**
+     * Peers a metadata download is connected to at once, racing each other
+     * for its pieces.
+     */
+    public int metaDataRacePeers = 4;
+    /**
+     * Looks a newly queued metadata download's infohash up with get_peers and
+     * adds the peers found to its candidates. The lookups are bounded like
+     * any other and their queries come out of the find_node rate.
+     */
+    public boolean metaDataPeerSearch = true;
+    /**
+     * Queries an iterative lookup keeps in flight.
+     */
+    public int lookupAlpha = 3;
+    /**
+     * Queries after which a lookup stops, bounding what it costs.
+     */
+    public int lookupMaxQueries = 64;
+    public int lookupShortlistSize = 32;
+    /**
+     * Milliseconds after which a lookup stops waiting for replies.
+     */
+    public long lookupTimeout = 30000;
+    /**
+     * Neighbour mode: replies claim an id sharing its first bytes with the
+     * requester's id or target, and crawl queries claim one next to the
+     * queried node, so that other nodes route more get_peers and
+     * announce_peer traffic to us. Replies are no longer honest about our id.
+     */
+    public boolean neighbourIds = false;
+    /**
+     * Bytes of the key a neighbour id copies, out of 20.
+     */
+    public int neighbourPrefixLength = 15;
+    /**
+     * Our address as other nodes see it. In neighbour mode, replies then
+     * start with this many entries pointing at us under ids next to the
+     * target, on the port we listen on.
+     */
+    public String externalIp = null;
+    public int neighbourSelfNodes = 2;
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stateless get_peers tokens as BEP 5 suggests: the token is a keyed hash of
+ * the requester's IP address, so nothing is stored per requester. The key
+ * rotates and the previous one stays valid until the next rotation, so a
+ * token is accepted for one to two rotation periods. The hash is
+ * SipHash-2-4, a MAC built for short inputs, and its 8 bytes are the token.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+public class GetPeersTokens {
+
+    public static final int TOKEN_LENGTH = 8;
+
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<byte[]> compactIpPorts = ThreadLocal.withInitial(() -> new byte[6]);
+    private final LongAdder rejectedCount = new LongAdder();
+    /**
+     * Current key words then previous key words, replaced as a whole.
+     */
+    private volatile long[] keys;
+
+    public GetPeersTokens() {
+        keys = new long[]{random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong()};
+    }
+
+    /**
+     * Makes a new current key, keeping the current one as previous.
+     */
+    public void rotate() {
+        long[] oldKeys = keys;
+        keys = new long[]{random.nextLong(), random.nextLong(), oldKeys[0], oldKeys[1]};
+    }
+
+    /**
+     * Writes the token for the address into dst.
+     */
+    public void token(String ip, byte[] dst, int offset) {
+        long[] currentKeys = keys;
+        long hash = sipHash(currentKeys[0], currentKeys[1], address(ip));
+        for (int i = 0; i < TOKEN_LENGTH; i++) {
+            dst[offset + i] = (byte) (hash >>> (56 - 8 * i));
+        }
+    }
+
+    /**
+     * @return true if the token was handed to the address under the current
+     * or the previous key
+     */
+    public boolean check(String ip, byte[] token) {
+        if (token == null || token.length != TOKEN_LENGTH) {
+            rejectedCount.increment();
+            return false;
+        }
+        long[] currentKeys = keys;
+        int address = address(ip);
+        long value = Util.longAt(token, 0);
+        if (value == sipHash(currentKeys[0], currentKeys[1], address)
+                || value == sipHash(currentKeys[2], currentKeys[3], address)) {
+            return true;
+        }
+        rejectedCount.increment();
+        return false;
+    }
+
+    /**
+     * @return the number of announce tokens that failed the check
+     */
+    public long rejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    private int address(String ip) {
+        byte[] compactIpPort = compactIpPorts.get();
+        return Util.compactIpPort(ip, 0, compactIpPort, 0) ? Util.intAt(compactIpPort, 0) : ip.hashCode();
+    }
+
+    /**
+     * SipHash-2-4 of the 4 byte big-endian form of value.
+     */
+    private static long sipHash(long key0, long key1, int value) {
+        long v0 = key0 ^ 0x736f6d6570736575L;
+        long v1 = key1 ^ 0x646f72616e646f6dL;
+        long v2 = key0 ^ 0x6c7967656e657261L;
+        long v3 = key1 ^ 0x7465646279746573L;
+        // the only block: the bytes little-endian, the length in the top byte
+        long block = (4L << 56) | (Integer.reverseBytes(value) & 0xffffffffL);
+        v3 ^= block;
+        for (int round = 0; round < 6; round++) {
+            if (round == 2) {
+                v0 ^= block;
+                v2 ^= 0xff;
+            }
+            v0 += v1;
+            v1 = Long.rotateLeft(v1, 13);
+            v1 ^= v0;
+            v0 = Long.rotateLeft(v0, 32);
+            v2 += v3;
+            v3 = Long.rotateLeft(v3, 16);
+            v3 ^= v2;
+            v0 += v3;
+            v3 = Long.rotateLeft(v3, 21);
+            v3 ^= v0;
+            v2 += v1;
+            v1 = Long.rotateLeft(v1, 17);
+            v1 ^= v2;
+            v2 = Long.rotateLeft(v2, 32);
+        }
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the get_peers and announce_peer events and the sampled infohashes
+ * handed to the {@link CrawlerListener}, in total and over the last full
+ * minute. Repeats dropped by the dedup filters, and announces merged into a
+ * metadata download already under way, are not handed over and not counted.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+public class HarvestMetrics {
+
+    private final LongAdder getPeersCount = new LongAdder();
+    private final LongAdder announcePeerCount = new LongAdder();
+    private final LongAdder sampleCount = new LongAdder();
+    private long lastGetPeersCount;
+    private long lastAnnouncePeerCount;
+    private long lastSampleCount;
+    private volatile long getPeersPerMinute;
+    private volatile long announcePeersPerMinute;
+    private volatile long samplesPerMinute;
+
+    void getPeers() {
+        getPeersCount.increment();
+    }
+
+    void announcePeer() {
+        announcePeerCount.increment();
+    }
+
+    void sample() {
+        sampleCount.increment();
+    }
+
+    /**
+     * Closes the current minute; called once a minute.
+     */
+    synchronized void roll() {
+        long currentGetPeersCount = getPeersCount.sum();
+        long currentAnnouncePeerCount = announcePeerCount.sum();
+        getPeersPerMinute = currentGetPeersCount - lastGetPeersCount;
+        announcePeersPerMinute = currentAnnouncePeerCount - lastAnnouncePeerCount;
+        lastGetPeersCount = currentGetPeersCount;
+        lastAnnouncePeerCount = currentAnnouncePeerCount;
+        long currentSampleCount = sampleCount.sum();
+        samplesPerMinute = currentSampleCount - lastSampleCount;
+        lastSampleCount = currentSampleCount;
+    }
+
+    public long getPeersCount() {
+        return getPeersCount.sum();
+    }
+
+    public long announcePeerCount() {
+        return announcePeerCount.sum();
+    }
+
+    public long getPeersPerMinute() {
+        return getPeersPerMinute;
+    }
+
+    public long announcePeersPerMinute() {
+        return announcePeersPerMinute;
+    }
+
+    public long sampleCount() {
+        return sampleCount.sum();
+    }
+
+    public long samplesPerMinute() {
+        return samplesPerMinute;
+    }
+}
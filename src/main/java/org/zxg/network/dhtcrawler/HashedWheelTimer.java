@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Timer wheel for large numbers of short timeouts. Scheduling only appends
+ * to a lock-free queue and cancelling is a single CAS; the timer thread moves
+ * new timeouts into the wheel slot of their deadline and expires one slot per
+ * tick. Deadlines are therefore rounded up to the tick duration. Tasks run on
+ * the timer thread and must be short.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+public class HashedWheelTimer {
+
+    @FunctionalInterface
+    public interface TimeoutTask {
+
+        void run(Timeout timeout) throws Exception;
+    }
+
+    public static final class Timeout {
+
+        private static final int INIT = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE_UPDATER
+                = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimeoutTask task;
+        private final long deadline;
+        public final Object attachment;
+
+        private volatile int state = INIT;
+        private long remainingRounds;
+        private Timeout prev;
+        private Timeout next;
+        private Slot slot;
+
+        private Timeout(TimeoutTask task, long deadline, Object attachment) {
+            this.task = task;
+            this.deadline = deadline;
+            this.attachment = attachment;
+        }
+
+        /**
+         * @return false if the timeout has already expired or been cancelled
+         */
+        public boolean cancel() {
+            return STATE_UPDATER.compareAndSet(this, INIT, CANCELLED);
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        private void expire() {
+            if (!STATE_UPDATER.compareAndSet(this, INIT, EXPIRED)) {
+                return;
+            }
+            try {
+                task.run(this);
+            } catch (Exception ex) {
+                Logger.getLogger(HashedWheelTimer.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    private static final class Slot {
+
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+            timeout.slot = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        private Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.slot = null;
+            return next;
+        }
+
+        private void expire(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                if (timeout.isCancelled()) {
+                    timeout = remove(timeout);
+                } else if (timeout.remainingRounds <= 0) {
+                    Timeout next = remove(timeout);
+                    if (timeout.deadline <= deadline) {
+                        timeout.expire();
+                    }
+                    timeout = next;
+                } else {
+                    timeout.remainingRounds--;
+                    timeout = timeout.next;
+                }
+            }
+        }
+    }
+
+    private final long tickDuration;
+    private final Slot[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+    private final Thread workerThread;
+    private volatile boolean running;
+    private volatile long startTime;
+    private long tick;
+
+    /**
+     * @param tickDuration milliseconds per tick
+     * @param ticksPerWheel rounded up to a power of two
+     */
+    public HashedWheelTimer(long tickDuration, int ticksPerWheel) {
+        this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+        int size = Integer.highestOneBit(Math.max(2, ticksPerWheel) - 1) << 1;
+        this.wheel = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.workerThread = new Thread(this::work, "dht-timer");
+        this.workerThread.setDaemon(true);
+    }
+
+    public void start() {
+        startTime = System.nanoTime();
+        running = true;
+        workerThread.start();
+    }
+
+    public void stop() {
+        running = false;
+        workerThread.interrupt();
+        try {
+            workerThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param delay milliseconds
+     */
+    public Timeout newTimeout(TimeoutTask task, long delay, Object attachment) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) - startTime;
+        Timeout timeout = new Timeout(task, deadline, attachment);
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Runs the task every period milliseconds until the timer stops.
+     */
+    public void schedulePeriodically(Runnable task, long period) {
+        newTimeout((timeout) -> {
+            try {
+                task.run();
+            } finally {
+                if (running) {
+                    schedulePeriodically(task, period);
+                }
+            }
+        }, period, null);
+    }
+
+    private void work() {
+        while (running) {
+            long deadline = tickDuration * (tick + 1);
+            long sleepTime = deadline - (System.nanoTime() - startTime);
+            if (sleepTime > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepTime);
+                } catch (InterruptedException ex) {
+                    continue;
+                }
+            }
+            transferPendingTimeouts();
+            wheel[(int) (tick & mask)].expire(deadline);
+            tick++;
+        }
+    }
+
+    private void transferPendingTimeouts() {
+        Timeout timeout;
+        while ((timeout = pendingTimeouts.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long expireTick = Math.max(timeout.deadline / tickDuration, tick);
+            timeout.remainingRounds = (expireTick - tick) / wheel.length;
+            wheel[(int) (expireTick & mask)].add(timeout);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the infohashes seen recently so that repeated ones can be
+ * dropped before they reach the listener. Each shard is a pair of Bloom
+ * filters: additions go to the current one, lookups check both, and
+ * rotating discards the older one, so an infohash is remembered for one to
+ * two rotation periods. A shard also rotates on its own once its current
+ * filter holds as many entries as the false positive rate allows.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+public class InfoHashFilter {
+
+    private final Shard[] shards;
+    private final int shardMask;
+    private final int bitMask;
+    private final int hashCount;
+    private final int shardCapacity;
+    private final long seed;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    /**
+     * @param memoryBytes upper bound of the memory taken by the bits
+     * @param shards rounded down to a power of two
+     */
+    public InfoHashFilter(long memoryBytes, double falsePositiveRate, int shards) {
+        int shardCount = Integer.highestOneBit(Math.max(1, shards));
+        // two filters per shard
+        long bitsPerFilter = Math.max(64, memoryBytes * 8 / (2L * shardCount));
+        int bits = (int) Long.highestOneBit(Math.min(bitsPerFilter, 1L << 30));
+        double ln2 = Math.log(2);
+        this.hashCount = Math.max(1, (int) Math.round(-Math.log(falsePositiveRate) / ln2));
+        this.shardCapacity = Math.max(1, (int) (bits * ln2 * ln2 / -Math.log(falsePositiveRate)));
+        this.bitMask = bits - 1;
+        this.shardMask = shardCount - 1;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            this.shards[i] = new Shard(bits / 64);
+        }
+        this.seed = Util.longAt(Util.entropy(8), 0);
+    }
+
+    /**
+     * Records the infohash.
+     *
+     * @return false if it was seen within the last rotation periods, or
+     * collides with ones that were
+     */
+    public boolean add(byte[] infoHash) {
+        // the seed keeps crafted infohashes from aiming at the same bits
+        long hash1 = Util.mix(Util.longAt(infoHash, 0) ^ seed);
+        long hash2 = Util.mix(Util.longAt(infoHash, 8) ^ Util.intAt(infoHash, 16) ^ ~seed) | 1;
+        Shard shard = shards[(int) (hash1 >>> 40) & shardMask];
+        if (shard.add(hash1, hash2)) {
+            missCount.increment();
+            return true;
+        }
+        hitCount.increment();
+        return false;
+    }
+
+    /**
+     * Forgets the infohashes added before the previous rotation.
+     */
+    public void rotate() {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.rotate();
+            }
+        }
+    }
+
+    /**
+     * @return the number of infohashes the filter holds before its false
+     * positive rate exceeds the configured one
+     */
+    public long capacity() {
+        return (long) shardCapacity * shards.length;
+    }
+
+    public long hitCount() {
+        return hitCount.sum();
+    }
+
+    public long missCount() {
+        return missCount.sum();
+    }
+
+    private final class Shard {
+
+        private long[] current;
+        private long[] previous;
+        private int count;
+
+        private Shard(int words) {
+            current = new long[words];
+            previous = new long[words];
+        }
+
+        /**
+         * @return true if the hash was in neither filter
+         */
+        private synchronized boolean add(long hash1, long hash2) {
+            boolean inCurrent = true;
+            boolean inPrevious = true;
+            for (int i = 0; i < hashCount && (inCurrent || inPrevious); i++) {
+                int bit = (int) (hash1 + i * hash2) & bitMask;
+                long mask = 1L << bit;
+                inCurrent &= (current[bit >>> 6] & mask) != 0;
+                inPrevious &= (previous[bit >>> 6] & mask) != 0;
+            }
+            if (inCurrent) {
+                return false;
+            }
+            if (count >= shardCapacity) {
+                rotate();
+            }
+            for (int i = 0; i < hashCount; i++) {
+                int bit = (int) (hash1 + i * hash2) & bitMask;
+                current[bit >>> 6] |= 1L << bit;
+            }
+            // a hit in the previous filter is carried over to stay remembered
+            count++;
+            return !inPrevious;
+        }
+
+        private void rotate() {
+            long[] cleared = previous;
+            Arrays.fill(cleared, 0);
+            previous = current;
+            current = cleared;
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Approximate request counts per infohash in fixed memory. Time is cut into
+ * slots, each with its own count-min sketch and its own heap of the most
+ * counted infohashes; a window query adds up the sketches of the slots it
+ * covers, newest first. Counts are never under the true ones and exceed
+ * them by at most a small share of all events in the window.
+ * <p>
+ * Only events whose estimate beats the smallest one in the slot's heap take
+ * the heap's lock, so the long tail of rare infohashes costs a few atomic
+ * increments each.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+public class InfoHashPopularity {
+
+    public static class Entry {
+
+        public byte[] infoHash;
+        public long count;
+    }
+
+    private final Slot[] slots;
+    private final long slotDuration;
+    private final int depth;
+    private final int widthMask;
+    private final long seed;
+    private volatile int current;
+
+    /**
+     * @param width counters per sketch row, rounded down to a power of two
+     * @param topCapacity infohashes each slot keeps as heavy hitter
+     * candidates
+     */
+    public InfoHashPopularity(int slotCount, long slotDuration, int depth, int width, int topCapacity) {
+        int rowWidth = Integer.highestOneBit(Math.max(1, width));
+        this.slots = new Slot[Math.max(1, slotCount)];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot(depth * rowWidth, Math.max(1, topCapacity));
+        }
+        this.slotDuration = slotDuration;
+        this.depth = Math.max(1, depth);
+        this.widthMask = rowWidth - 1;
+        this.seed = Util.longAt(Util.entropy(8), 0);
+    }
+
+    public void add(byte[] infoHash) {
+        long hash1 = Util.mix(Util.longAt(infoHash, 0) ^ seed);
+        long hash2 = Util.mix(Util.longAt(infoHash, 8) ^ Util.intAt(infoHash, 16) ^ ~seed) | 1;
+        Slot slot = slots[current];
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, slot.counters.incrementAndGet(index(row, hash1, hash2)));
+        }
+        if (estimate > slot.threshold) {
+            slot.offer(infoHash, estimate);
+        }
+    }
+
+    /**
+     * Starts a new slot, dropping the oldest one.
+     */
+    void rotate() {
+        int next = (current + 1) % slots.length;
+        slots[next].clear();
+        current = next;
+    }
+
+    /**
+     * @return the slots a window of the given milliseconds covers, the
+     * current partial one included
+     */
+    private int slotCount(long window) {
+        return (int) Math.max(1, Math.min(slots.length, (window + slotDuration - 1) / slotDuration));
+    }
+
+    /**
+     * @return the estimated number of events for the infohash in the last
+     * window milliseconds, rounded up to whole slots
+     */
+    public long count(byte[] infoHash, long window) {
+        return count(infoHash, slotCount(window), current);
+    }
+
+    private long count(byte[] infoHash, int slotCount, int newest) {
+        long hash1 = Util.mix(Util.longAt(infoHash, 0) ^ seed);
+        long hash2 = Util.mix(Util.longAt(infoHash, 8) ^ Util.intAt(infoHash, 16) ^ ~seed) | 1;
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int index = index(row, hash1, hash2);
+            long sum = 0;
+            for (int i = 0; i < slotCount; i++) {
+                sum += slots[(newest - i + slots.length) % slots.length].counters.get(index);
+            }
+            estimate = Math.min(estimate, sum);
+        }
+        return estimate;
+    }
+
+    /**
+     * @return up to max of the most counted infohashes in the last window
+     * milliseconds, most counted first
+     */
+    public List<Entry> top(int max, long window) {
+        int slotCount = slotCount(window);
+        int newest = current;
+        Set<ByteBuffer> candidates = new HashSet<>();
+        for (int i = 0; i < slotCount; i++) {
+            slots[(newest - i + slots.length) % slots.length].candidates(candidates);
+        }
+        List<Entry> entries = new ArrayList<>(candidates.size());
+        for (ByteBuffer candidate : candidates) {
+            Entry entry = new Entry();
+            entry.infoHash = candidate.array();
+            entry.count = count(entry.infoHash, slotCount, newest);
+            entries.add(entry);
+        }
+        entries.sort((entry1, entry2) -> Long.compare(entry2.count, entry1.count));
+        return entries.size() > max ? new ArrayList<>(entries.subList(0, max)) : entries;
+    }
+
+    private int index(int row, long hash1, long hash2) {
+        return row * (widthMask + 1) + ((int) ((hash1 + row * hash2) >>> 16) & widthMask);
+    }
+
+    private static final class Slot {
+
+        private final AtomicIntegerArray counters;
+        /**
+         * Min-heap of the candidates by the estimate they were offered with.
+         */
+        private final ByteBuffer[] keys;
+        private final long[] counts;
+        private final Map<ByteBuffer, Integer> positions;
+        private int size;
+        /**
+         * Smallest estimate in the heap once it is full, else 0.
+         */
+        private volatile long threshold;
+
+        private Slot(int counterCount, int topCapacity) {
+            counters = new AtomicIntegerArray(counterCount);
+            keys = new ByteBuffer[topCapacity];
+            counts = new long[topCapacity];
+            positions = new HashMap<>(topCapacity * 2);
+        }
+
+        private synchronized void offer(byte[] infoHash, long estimate) {
+            ByteBuffer key = ByteBuffer.wrap(infoHash);
+            Integer position = positions.get(key);
+            if (position != null) {
+                counts[position] = Math.max(counts[position], estimate);
+                siftDown(position);
+            } else if (size < keys.length) {
+                keys[size] = key;
+                counts[size] = estimate;
+                positions.put(key, size);
+                siftUp(size++);
+            } else if (estimate > counts[0]) {
+                positions.remove(keys[0]);
+                keys[0] = key;
+                counts[0] = estimate;
+                positions.put(key, 0);
+                siftDown(0);
+            }
+            if (size == keys.length) {
+                threshold = counts[0];
+            }
+        }
+
+        private synchronized void candidates(Set<ByteBuffer> candidates) {
+            for (int i = 0; i < size; i++) {
+                candidates.add(keys[i]);
+            }
+        }
+
+        private synchronized void clear() {
+            for (int i = 0; i < counters.length(); i++) {
+                counters.set(i, 0);
+            }
+            positions.clear();
+            for (int i = 0; i < size; i++) {
+                keys[i] = null;
+            }
+            size = 0;
+            threshold = 0;
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (counts[parent] <= counts[i]) {
+                    break;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && counts[child + 1] < counts[child]) {
+                    child++;
+                }
+                if (counts[i] <= counts[child]) {
+                    break;
+                }
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        private void swap(int i, int j) {
+            ByteBuffer key = keys[i];
+            keys[i] = keys[j];
+            keys[j] = key;
+            long count = counts[i];
+            counts[i] = counts[j];
+            counts[j] = count;
+            positions.put(keys[i], i);
+            positions.put(keys[j], j);
+        }
+    }
+}
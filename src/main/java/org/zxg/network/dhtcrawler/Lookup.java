@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import org.zxg.network.dhtcrawler.dht.CompactNodeInfo;
+
+/**
+ * State of one iterative Kademlia lookup. The shortlist holds the closest
+ * candidates seen so far ordered by XOR distance to the target; the closest
+ * ones not yet queried are queried, at most alpha at a time, and the lookup
+ * finishes once the K closest candidates that did not fail have all
+ * answered, when nothing is left to query, when maxQueries queries have
+ * been sent or when it expires. Every lookup therefore costs at most
+ * maxQueries requests plus their retries.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+public class Lookup {
+
+    @FunctionalInterface
+    public interface Querier {
+
+        /**
+         * Sends find_node or get_peers for the lookup target to the
+         * candidate, which the reply or the timeout must be reported for.
+         */
+        void query(Candidate candidate) throws IOException;
+    }
+
+    private static final int QUERYABLE = 0;
+    private static final int IN_FLIGHT = 1;
+    private static final int RESPONDED = 2;
+    private static final int FAILED = 3;
+
+    public static final class Candidate {
+
+        public final Lookup lookup;
+        public final Addr addr;
+        /**
+         * Null for a bootstrap node until it answers.
+         */
+        public byte[] id;
+        private int state = QUERYABLE;
+
+        private Candidate(Lookup lookup, Addr addr, byte[] id) {
+            this.lookup = lookup;
+            this.addr = addr;
+            this.id = id;
+        }
+    }
+
+    public final byte[] target;
+
+    private final int alpha;
+    private final int maxQueries;
+    private final Querier querier;
+    private final Consumer<Lookup> finishListener;
+    private final Candidate[] shortlist;
+    private int size;
+    private int inFlight;
+    private int queries;
+    private boolean finished;
+
+    /**
+     * @param shortlistSize candidates kept; farther ones are forgotten
+     * @param finishListener called once when the lookup finishes, may be null
+     */
+    public Lookup(byte[] target, int alpha, int maxQueries, int shortlistSize,
+            Querier querier, Consumer<Lookup> finishListener) {
+        this.target = target;
+        this.alpha = alpha;
+        this.maxQueries = maxQueries;
+        this.shortlist = new Candidate[Math.max(shortlistSize, Bucket.K)];
+        this.querier = querier;
+        this.finishListener = finishListener;
+    }
+
+    public synchronized void addSeed(Addr addr, byte[] id) {
+        add(addr, id);
+    }
+
+    public synchronized void start() throws IOException {
+        advance();
+    }
+
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    public synchronized int queries() {
+        return queries;
+    }
+
+    public synchronized void replied(Candidate candidate, byte[] nodeId, List<CompactNodeInfo> nodes) throws IOException {
+        if (candidate.state != IN_FLIGHT) {
+            return;
+        }
+        candidate.state = RESPONDED;
+        inFlight--;
+        if (candidate.id == null && nodeId != null && nodeId.length == 20 && remove(candidate)) {
+            candidate.id = nodeId;
+            insert(candidate);
+        }
+        if (nodes != null) {
+            for (CompactNodeInfo node : nodes) {
+                add(new Addr(node.compactIpAddressPortInfo.ip, node.compactIpAddressPortInfo.port), node.nodeId);
+            }
+        }
+        advance();
+    }
+
+    public synchronized void failed(Candidate candidate) throws IOException {
+        if (candidate.state != IN_FLIGHT) {
+            return;
+        }
+        candidate.state = FAILED;
+        inFlight--;
+        advance();
+    }
+
+    /**
+     * Gives up on the replies still outstanding.
+     */
+    public synchronized void expire() {
+        finish();
+    }
+
+    /**
+     * @return the closest nodes that answered, nearest first
+     */
+    public synchronized List<Node> closestNodes() {
+        List<Node> nodes = new ArrayList<>(Bucket.K);
+        for (int i = 0; i < size && nodes.size() < Bucket.K; i++) {
+            Candidate candidate = shortlist[i];
+            if (candidate.state == RESPONDED && candidate.id != null) {
+                nodes.add(new Node(candidate.id, candidate.addr.ip, candidate.addr.port));
+            }
+        }
+        return nodes;
+    }
+
+    private void advance() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (closestResponded()) {
+            finish();
+            return;
+        }
+        while (inFlight < alpha && queries < maxQueries) {
+            Candidate next = null;
+            int closest = 0;
+            for (int i = 0; i < size && closest < Bucket.K; i++) {
+                Candidate candidate = shortlist[i];
+                if (candidate.state == QUERYABLE) {
+                    next = candidate;
+                    break;
+                }
+                if (candidate.state != FAILED) {
+                    closest++;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            next.state = IN_FLIGHT;
+            inFlight++;
+            queries++;
+            querier.query(next);
+        }
+        if (inFlight == 0) {
+            finish();
+        }
+    }
+
+    private boolean closestResponded() {
+        int closest = 0;
+        for (int i = 0; i < size && closest < Bucket.K; i++) {
+            Candidate candidate = shortlist[i];
+            if (candidate.state == FAILED) {
+                continue;
+            }
+            if (candidate.state != RESPONDED) {
+                return false;
+            }
+            closest++;
+        }
+        return closest > 0;
+    }
+
+    private void finish() {
+        if (!finished) {
+            finished = true;
+            if (finishListener != null) {
+                finishListener.accept(this);
+            }
+        }
+    }
+
+    private void add(Addr addr, byte[] id) {
+        if (id != null) {
+            if (id.length != 20) {
+                return;
+            }
+            for (int i = 0; i < size; i++) {
+                if (Arrays.equals(shortlist[i].id, id)) {
+                    return;
+                }
+            }
+        }
+        Candidate candidate = new Candidate(this, addr, id);
+        if (size == shortlist.length) {
+            if (compare(candidate, shortlist[size - 1]) >= 0) {
+                return;
+            }
+            size--;
+        }
+        insert(candidate);
+    }
+
+    private void insert(Candidate candidate) {
+        int i = size;
+        while (i > 0 && compare(candidate, shortlist[i - 1]) < 0) {
+            shortlist[i] = shortlist[i - 1];
+            i--;
+        }
+        shortlist[i] = candidate;
+        size++;
+    }
+
+    private boolean remove(Candidate candidate) {
+        for (int i = 0; i < size; i++) {
+            if (shortlist[i] == candidate) {
+                System.arraycopy(shortlist, i + 1, shortlist, i, size - i - 1);
+                shortlist[--size] = null;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Candidates of unknown id sort last.
+     */
+    private int compare(Candidate candidate1, Candidate candidate2) {
+        if (candidate1.id == null || candidate2.id == null) {
+            return candidate1.id == null ? (candidate2.id == null ? 0 : 1) : -1;
+        }
+        return RouteTable.compareDistance(target, candidate1.id, candidate2.id);
+    }
+}
@@ -22,4 +22,12 @@ package org.zxg.network.dhtcrawler;
  */
 public class MetaData {
     public String name;
+    /**
+     * Total length of the files in bytes.
+     */
+    public long length;
+    /**
+     * The bencoded info dictionary, checked against the infohash.
+     */
+    public byte[] info;
 }
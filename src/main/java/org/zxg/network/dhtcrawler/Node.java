@@ -17,7 +17,6 @@
 package org.zxg.network.dhtcrawler;
 
 import java.util.Arrays;
-import java.util.List;
 
 /**
  *
@@ -32,8 +31,11 @@ public class Node {
     public long lastReqTime;
     public long lastReplyTime;
     public boolean replied;
-
-    public List<GetPeersTokenAndTime> getPeersTokens;
+    /**
+     * Requests to the node that timed out since its last reply.
+     */
+    public int failedRequests;
+    public long lastPingTime;
 
     public Node() {
         lastReqTime = System.currentTimeMillis();
@@ -48,6 +50,22 @@ public class Node {
         this.port = port;
     }
 
+    /**
+     * Queries only count once the node has replied, so that a node we never
+     * heard back from ranks as least recently seen.
+     */
+    public long lastSeenTime() {
+        return replied ? Math.max(lastReqTime, lastReplyTime) : lastReplyTime;
+    }
+
+    /**
+     * A good node in the sense of BEP 5: it has replied, and replied or
+     * queried us within the last 15 minutes.
+     */
+    public boolean isGood(long currentTime) {
+        return replied && (currentTime - lastReplyTime < 900000 || currentTime - lastReqTime < 900000);
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj) {
@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Off-heap store of every node contact learned, for the crawl scheduler to
+ * pick find_node targets from. Records are packed into a direct or
+ * memory-mapped buffer, 16 to a bucket, and an id hashes to one bucket only;
+ * a full bucket overwrites its least valuable record, so lookups never probe
+ * further than one bucket and nothing ever needs deleting. A mapped store
+ * keeps its contents across restarts.
+ * <p>
+ * Record layout: 20 byte id, 4 byte IPv4 address, 2 byte port, status,
+ * consecutive failures, last seen (or learned, for a node never heard from),
+ * last queried and next sample_infohashes due in seconds.
+ * <p>
+ * Every unanswered query doubles the time until a node is queried again,
+ * and after maxFailures in a row it is dead: never handed out again and
+ * the first to be overwritten, unless it talks to us and so becomes
+ * responsive again.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+public class NodeStore {
+
+    public static final byte EMPTY = 0;
+    /**
+     * Learned from a find_node reply, never queried.
+     */
+    public static final byte NEW = 1;
+    public static final byte QUERIED = 2;
+    public static final byte RESPONSIVE = 3;
+    public static final byte DEAD = 4;
+
+    /**
+     * Failures beyond which the requery interval stops doubling.
+     */
+    private static final int MAX_BACKOFF_SHIFT = 10;
+
+    @FunctionalInterface
+    public interface Visitor {
+
+        void visit(byte[] id, String ip, int port) throws IOException;
+    }
+
+    private static final int MAGIC = 0x44484e53;
+    /**
+     * Bumped whenever records would land in other buckets, so that older
+     * files are discarded rather than misread.
+     */
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 40;
+    private static final int IP_OFFSET = 20;
+    private static final int PORT_OFFSET = 24;
+    private static final int STATUS_OFFSET = 26;
+    private static final int FAILURES_OFFSET = 27;
+    private static final int LAST_SEEN_OFFSET = 28;
+    private static final int LAST_QUERIED_OFFSET = 32;
+    private static final int NEXT_SAMPLE_OFFSET = 36;
+    private static final int BUCKET_SLOTS = 16;
+    private static final int LOCK_STRIPES = 1024;
+
+    private final ByteBuffer buffer;
+    private final int bucketMask;
+    private final long seed;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final LongAdder evictedCount = new LongAdder();
+    private final ThreadLocal<byte[]> compactIpPorts = ThreadLocal.withInitial(() -> new byte[6]);
+    private long cursor;
+    private long sampleCursor;
+
+    private NodeStore(ByteBuffer buffer, int buckets, long seed) {
+        this.buffer = buffer;
+        this.bucketMask = buckets - 1;
+        this.seed = seed;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @param capacity rounded down to a power of two, at most 2^25 records
+     */
+    public static NodeStore allocate(int capacity) {
+        int buckets = buckets(capacity);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size(buckets));
+        long seed = Util.longAt(Util.entropy(8), 0);
+        initHeader(buffer, buckets, seed);
+        return new NodeStore(buffer, buckets, seed);
+    }
+
+    /**
+     * Maps the file, keeping its records if it was written by a store of the
+     * same capacity and starting empty otherwise.
+     */
+    public static NodeStore open(Path file, int capacity) throws IOException {
+        int buckets = buckets(capacity);
+        int size = size(buckets);
+        MappedByteBuffer buffer;
+        boolean reuse;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            reuse = channel.size() == size;
+            if (!reuse) {
+                channel.truncate(0);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        if (reuse && buffer.getInt(0) == MAGIC && buffer.getInt(4) == buckets
+                && buffer.getInt(16) == VERSION) {
+            return new NodeStore(buffer, buckets, buffer.getLong(8));
+        }
+        if (reuse) {
+            Logger.getLogger(NodeStore.class.getName()).log(Level.WARNING,
+                    "discarding node store with a bad header: {0}", file);
+            for (int i = 0; i < size; i += 8) {
+                buffer.putLong(i, 0);
+            }
+        }
+        long seed = Util.longAt(Util.entropy(8), 0);
+        initHeader(buffer, buckets, seed);
+        return new NodeStore(buffer, buckets, seed);
+    }
+
+    private static int buckets(int capacity) {
+        return Integer.highestOneBit(Math.max(BUCKET_SLOTS, Math.min(capacity, 1 << 25)) / BUCKET_SLOTS);
+    }
+
+    private static int size(int buckets) {
+        return HEADER_SIZE + buckets * BUCKET_SLOTS * RECORD_SIZE;
+    }
+
+    private static void initHeader(ByteBuffer buffer, int buckets, long seed) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, buckets);
+        buffer.putLong(8, seed);
+        buffer.putInt(16, VERSION);
+    }
+
+    public int capacity() {
+        return (bucketMask + 1) * BUCKET_SLOTS;
+    }
+
+    public long evictedCount() {
+        return evictedCount.sum();
+    }
+
+    /**
+     * Records a contact learned from another node. A known node only gets
+     * its address updated.
+     */
+    public void learn(byte[] id, String ip, int port, long currentTime) {
+        put(id, ip, port, NEW, currentTime);
+    }
+
+    /**
+     * Records a contact that has just talked to us.
+     */
+    public void seen(byte[] id, String ip, int port, long currentTime) {
+        put(id, ip, port, RESPONSIVE, currentTime);
+    }
+
+    private void put(byte[] id, String ip, int port, byte status, long currentTime) {
+        if (id.length != 20) {
+            return;
+        }
+        byte[] compactIpPort = compactIpPorts.get();
+        if (!Util.compactIpPort(ip, port, compactIpPort, 0)) {
+            return;
+        }
+        int bucket = bucket(id);
+        int seconds = seconds(currentTime);
+        synchronized (lock(bucket)) {
+            int offset = find(bucket, id);
+            if (offset < 0) {
+                offset = victim(bucket);
+                if (buffer.get(offset + STATUS_OFFSET) != EMPTY) {
+                    evictedCount.increment();
+                }
+                for (int i = 0; i < 20; i++) {
+                    buffer.put(offset + i, id[i]);
+                }
+                buffer.put(offset + FAILURES_OFFSET, (byte) 0);
+                buffer.putInt(offset + LAST_SEEN_OFFSET, seconds);
+                buffer.putInt(offset + LAST_QUERIED_OFFSET, 0);
+                buffer.putInt(offset + NEXT_SAMPLE_OFFSET, 0);
+                buffer.put(offset + STATUS_OFFSET, status);
+            } else if (status == RESPONSIVE) {
+                buffer.put(offset + FAILURES_OFFSET, (byte) 0);
+                buffer.putInt(offset + LAST_SEEN_OFFSET, seconds);
+                buffer.put(offset + STATUS_OFFSET, status);
+            }
+            for (int i = 0; i < 6; i++) {
+                buffer.put(offset + IP_OFFSET + i, compactIpPort[i]);
+            }
+        }
+    }
+
+    /**
+     * Counts a query the node did not answer; a responsive node is no longer
+     * taken as such, and one failing maxFailures times in a row is dead.
+     */
+    public void failed(byte[] id, int maxFailures) {
+        if (id.length != 20) {
+            return;
+        }
+        int bucket = bucket(id);
+        synchronized (lock(bucket)) {
+            int offset = find(bucket, id);
+            if (offset >= 0 && buffer.get(offset + STATUS_OFFSET) != DEAD) {
+                int failures = Math.min((buffer.get(offset + FAILURES_OFFSET) & 0xff) + 1, 255);
+                buffer.put(offset + FAILURES_OFFSET, (byte) failures);
+                buffer.put(offset + STATUS_OFFSET, failures >= maxFailures ? DEAD : QUERIED);
+            }
+        }
+    }
+
+    /**
+     * @return the status of the node, EMPTY if it is unknown
+     */
+    public byte status(byte[] id) {
+        int bucket = bucket(id);
+        synchronized (lock(bucket)) {
+            int offset = find(bucket, id);
+            return offset < 0 ? EMPTY : buffer.get(offset + STATUS_OFFSET);
+        }
+    }
+
+    /**
+     * Walks the store from where the previous call stopped and hands up to
+     * max nodes due for a query to the visitor, marking them queried. A node
+     * is due if it was never queried, or its last query is older than
+     * requeryInterval milliseconds doubled for each failure in a row and it
+     * is not dead. At most 64 records are
+     * looked at per node wanted, so a sparse store does not stall the caller.
+     * Not meant to be called from several threads at once.
+     *
+     * @return the number of nodes visited
+     */
+    public int poll(int max, long currentTime, long requeryInterval, Visitor visitor) throws IOException {
+        int seconds = seconds(currentTime);
+        long requerySeconds = requeryInterval / 1000;
+        long slots = capacity();
+        long scanLimit = Math.min(slots, (long) max * 64);
+        int count = 0;
+        byte[] compactIpPort = new byte[6];
+        for (long scanned = 0; scanned < scanLimit && count < max; scanned++) {
+            int slot = (int) (cursor++ % slots);
+            int offset = HEADER_SIZE + slot * RECORD_SIZE;
+            byte[] id = null;
+            synchronized (lock(slot / BUCKET_SLOTS)) {
+                byte status = buffer.get(offset + STATUS_OFFSET);
+                int failures = Math.min(buffer.get(offset + FAILURES_OFFSET) & 0xff, MAX_BACKOFF_SHIFT);
+                if (status == NEW || ((status == QUERIED || status == RESPONSIVE)
+                        && seconds - buffer.getInt(offset + LAST_QUERIED_OFFSET) >= requerySeconds << failures)) {
+                    id = new byte[20];
+                    for (int i = 0; i < 20; i++) {
+                        id[i] = buffer.get(offset + i);
+                    }
+                    for (int i = 0; i < 6; i++) {
+                        compactIpPort[i] = buffer.get(offset + IP_OFFSET + i);
+                    }
+                    if (status == NEW) {
+                        buffer.put(offset + STATUS_OFFSET, QUERIED);
+                    }
+                    buffer.putInt(offset + LAST_QUERIED_OFFSET, seconds);
+                }
+            }
+            if (id != null) {
+                visit(visitor, id, compactIpPort);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Like poll, but hands over responsive nodes whose next sample_infohashes
+     * is due, and pushes that time retryInterval milliseconds ahead until the
+     * node's answer tells when to come back.
+     *
+     * @return the number of nodes visited
+     */
+    public int pollSamples(int max, long currentTime, long retryInterval, Visitor visitor) throws IOException {
+        int seconds = seconds(currentTime);
+        int retrySeconds = (int) (retryInterval / 1000);
+        long slots = capacity();
+        long scanLimit = Math.min(slots, (long) max * 64);
+        int count = 0;
+        byte[] compactIpPort = new byte[6];
+        for (long scanned = 0; scanned < scanLimit && count < max; scanned++) {
+            int slot = (int) (sampleCursor++ % slots);
+            int offset = HEADER_SIZE + slot * RECORD_SIZE;
+            byte[] id = null;
+            synchronized (lock(slot / BUCKET_SLOTS)) {
+                if (buffer.get(offset + STATUS_OFFSET) == RESPONSIVE
+                        && seconds - buffer.getInt(offset + NEXT_SAMPLE_OFFSET) >= 0) {
+                    id = new byte[20];
+                    for (int i = 0; i < 20; i++) {
+                        id[i] = buffer.get(offset + i);
+                    }
+                    for (int i = 0; i < 6; i++) {
+                        compactIpPort[i] = buffer.get(offset + IP_OFFSET + i);
+                    }
+                    buffer.putInt(offset + NEXT_SAMPLE_OFFSET, seconds + retrySeconds);
+                }
+            }
+            if (id != null) {
+                visit(visitor, id, compactIpPort);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Records when the node may be sent sample_infohashes again.
+     */
+    public void sampled(byte[] id, long nextSampleTime) {
+        if (id.length != 20) {
+            return;
+        }
+        int bucket = bucket(id);
+        synchronized (lock(bucket)) {
+            int offset = find(bucket, id);
+            if (offset >= 0) {
+                buffer.putInt(offset + NEXT_SAMPLE_OFFSET, seconds(nextSampleTime));
+            }
+        }
+    }
+
+    private static void visit(Visitor visitor, byte[] id, byte[] compactIpPort) throws IOException {
+        visitor.visit(id, (compactIpPort[0] & 0xff) + "." + (compactIpPort[1] & 0xff)
+                + "." + (compactIpPort[2] & 0xff) + "." + (compactIpPort[3] & 0xff),
+                ((compactIpPort[4] & 0xff) << 8) | (compactIpPort[5] & 0xff));
+    }
+
+    /**
+     * Writes a mapped store's changes out to its file.
+     */
+    public void flush() {
+        if (buffer instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) buffer).force();
+        }
+    }
+
+    /**
+     * Hashes the whole id, as neighbour ids share long prefixes.
+     */
+    private int bucket(byte[] id) {
+        long hash = Util.mix(Util.longAt(id, 0) ^ seed)
+                ^ Util.mix(Util.longAt(id, 8) ^ Util.intAt(id, 16) ^ ~seed);
+        return (int) (hash >>> 32) & bucketMask;
+    }
+
+    private Object lock(int bucket) {
+        return locks[bucket & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * @return the offset of the node's record, or -1
+     */
+    private int find(int bucket, byte[] id) {
+        int offset = HEADER_SIZE + bucket * BUCKET_SLOTS * RECORD_SIZE;
+        for (int slot = 0; slot < BUCKET_SLOTS; slot++, offset += RECORD_SIZE) {
+            byte status = buffer.get(offset + STATUS_OFFSET);
+            if (status == EMPTY) {
+                return -1;
+            }
+            if (equals(offset, id)) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private boolean equals(int offset, byte[] id) {
+        for (int i = 0; i < 20; i++) {
+            if (buffer.get(offset + i) != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the first empty record of the bucket, else the record least
+     * worth keeping: dead nodes first, then never answered ones, then the one
+     * seen longest ago
+     */
+    private int victim(int bucket) {
+        int offset = HEADER_SIZE + bucket * BUCKET_SLOTS * RECORD_SIZE;
+        int victim = offset;
+        long victimScore = Long.MAX_VALUE;
+        for (int slot = 0; slot < BUCKET_SLOTS; slot++, offset += RECORD_SIZE) {
+            byte status = buffer.get(offset + STATUS_OFFSET);
+            if (status == EMPTY) {
+                return offset;
+            }
+            long rank = status == DEAD ? 0 : status == RESPONSIVE ? 2 : 1;
+            long score = (rank << 32) | (buffer.getInt(offset + LAST_SEEN_OFFSET) & 0xffffffffL);
+            if (score < victimScore) {
+                victim = offset;
+                victimScore = score;
+            }
+        }
+        return victim;
+    }
+
+    private static int seconds(long currentTime) {
+        return (int) (currentTime / 1000);
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2014 Xianguang Zhou <xianguang.zhou@outlook.com>
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
  *
  * This program is free software: you can redistribute it and/or modify
  * it under the terms of the GNU Affero General Public License as published by
@@ -20,7 +20,8 @@ package org.zxg.network.dhtcrawler;
  *
  * @author Xianguang Zhou <xianguang.zhou@outlook.com>
  */
-@SuppressWarnings("serial")
-public class BucketFullException extends Exception {
+public enum OverflowPolicy {
 
+    DROP_OLDEST,
+    DROP_NEWEST
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Additive-increase, multiplicative-decrease controller of the outbound
+ * find_node rate. Once per interval the rate is cut when the sent bytes
+ * exceeded the bandwidth ceiling, when inbound datagrams were dropped or when
+ * too few queries were answered, and raised by a fixed step otherwise.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+public class RateController {
+
+    public enum Reason {
+        INITIAL,
+        INCREASE,
+        BANDWIDTH_CEILING,
+        INBOUND_DROPS,
+        LOW_REPLY_RATIO,
+        /**
+         * Too few queries sent in the interval to judge the reply ratio.
+         */
+        HOLD
+    }
+
+    /**
+     * Queries needed in an interval before the reply ratio is trusted.
+     */
+    private static final int MIN_SAMPLES = 50;
+
+    private final int minRate;
+    private final int maxRate;
+    private final int increase;
+    private final double decreaseFactor;
+    private final double minReplyRatio;
+    private final long bandwidthCeiling;
+
+    private final LongAdder sentCount = new LongAdder();
+    private final LongAdder replyCount = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+
+    private volatile int rate;
+    private volatile Reason reason = Reason.INITIAL;
+    private volatile double replyRatio;
+    private volatile long bytesPerSecond;
+
+    /**
+     * @param bandwidthCeiling outbound bytes per second, 0 for none
+     */
+    public RateController(int initialRate, int minRate, int maxRate, int increase,
+            double decreaseFactor, double minReplyRatio, long bandwidthCeiling) {
+        this.minRate = minRate;
+        this.maxRate = Math.max(minRate, maxRate);
+        this.rate = Math.max(minRate, Math.min(initialRate, this.maxRate));
+        this.increase = increase;
+        this.decreaseFactor = decreaseFactor;
+        this.minReplyRatio = minReplyRatio;
+        this.bandwidthCeiling = bandwidthCeiling;
+    }
+
+    public void querySent() {
+        sentCount.increment();
+    }
+
+    public void replyReceived() {
+        replyCount.increment();
+    }
+
+    public void bytesSent(int bytes) {
+        sentBytes.add(bytes);
+    }
+
+    /**
+     * Closes an interval.
+     *
+     * @param inboundDrops datagrams dropped on the receive side during it
+     */
+    public synchronized void update(long inboundDrops, long elapsedMillis) {
+        long sent = sentCount.sumThenReset();
+        long replies = replyCount.sumThenReset();
+        bytesPerSecond = sentBytes.sumThenReset() * 1000 / Math.max(1, elapsedMillis);
+        if (sent > 0) {
+            replyRatio = Math.min(1.0, (double) replies / sent);
+        }
+        int newRate;
+        Reason newReason;
+        if (bandwidthCeiling > 0 && bytesPerSecond > bandwidthCeiling) {
+            newRate = (int) (rate * decreaseFactor);
+            newReason = Reason.BANDWIDTH_CEILING;
+        } else if (inboundDrops > 0) {
+            newRate = (int) (rate * decreaseFactor);
+            newReason = Reason.INBOUND_DROPS;
+        } else if (sent < MIN_SAMPLES) {
+            newRate = rate;
+            newReason = Reason.HOLD;
+        } else if (replyRatio < minReplyRatio) {
+            newRate = (int) (rate * decreaseFactor);
+            newReason = Reason.LOW_REPLY_RATIO;
+        } else {
+            newRate = rate + increase;
+            newReason = Reason.INCREASE;
+        }
+        newRate = Math.max(minRate, Math.min(newRate, maxRate));
+        if (newRate != rate) {
+            Logger.getLogger(RateController.class.getName()).log(Level.FINE,
+                    "find_node rate {0} -> {1}: {2}", new Object[]{rate, newRate, newReason});
+        }
+        rate = newRate;
+        reason = newReason;
+    }
+
+    /**
+     * @return the target find_node queries per second
+     */
+    public int rate() {
+        return rate;
+    }
+
+    /**
+     * @return why the rate was last set
+     */
+    public Reason reason() {
+        return reason;
+    }
+
+    /**
+     * @return the share of queries answered in the last interval with any
+     */
+    public double replyRatio() {
+        return replyRatio;
+    }
+
+    public long bytesPerSecond() {
+        return bytesPerSecond;
+    }
+}
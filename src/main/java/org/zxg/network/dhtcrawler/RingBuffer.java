@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Bounded lock-free ring of preallocated slots, safe for any number of
+ * producers and consumers. Each slot carries a sequence number that tells
+ * whether it is ready to be written or read, so neither side allocates or
+ * locks. When the ring is full the overflow policy decides which element is
+ * dropped, and dropped elements are handed to the drop handler.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ * @param <E>
+ */
+public class RingBuffer<E> {
+
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final OverflowPolicy overflowPolicy;
+    private final Consumer<E> dropHandler;
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public RingBuffer(int capacity, OverflowPolicy overflowPolicy, Consumer<E> dropHandler) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.elements = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.dropHandler = dropHandler;
+    }
+
+    /**
+     * @return false if the element itself was dropped
+     */
+    public boolean offer(E element) {
+        while (!tryOffer(element)) {
+            if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                drop(element);
+                return false;
+            }
+            E oldest = poll();
+            if (oldest != null) {
+                drop(oldest);
+            }
+        }
+        return true;
+    }
+
+    private void drop(E element) {
+        dropped.increment();
+        dropHandler.accept(element);
+    }
+
+    private boolean tryOffer(E element) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements[index] = element;
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = (E) elements[index];
+                    elements[index] = null;
+                    sequences.lazySet(index, position + mask + 1);
+                    return element;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, elements.length));
+    }
+
+    public int capacity() {
+        return elements.length;
+    }
+
+    public long droppedCount() {
+        return dropped.sum();
+    }
+}
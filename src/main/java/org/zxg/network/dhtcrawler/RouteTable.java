@@ -16,98 +16,380 @@
  */
 package org.zxg.network.dhtcrawler;
 
-import java.math.BigInteger;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.BiConsumer;
 
 /**
+ * Buckets are indexed by the length of the id prefix a node shares with
+ * selfNodeId: bucket i holds the nodes sharing exactly i leading bits, except
+ * the last one, which holds every node sharing at least as many and is the
+ * only one that splits.
+ * <p>
+ * All buckets exist up front and bucketCount says how many are in use, so a
+ * split only touches the last bucket and the next one. Writers lock the
+ * bucket they change, and a split holds both locks while it moves nodes and
+ * bumps bucketCount. Readers never lock the table; they read bucketCount
+ * before and after visiting buckets and retry if a split happened meanwhile.
  *
  * @author Xianguang Zhou <xianguang.zhou@outlook.com>
  */
 public class RouteTable {
 
-    public List<Bucket> buckets;
+    public static final int ID_BITS = 160;
+
     public byte[] selfNodeId;
 
+    private final Bucket[] buckets = new Bucket[ID_BITS];
+    private volatile int bucketCount;
+
+    private final long self0;
+    private final long self1;
+    private final int self2;
+
+    private final ThreadLocal<NearestNodesSelector> selectors = ThreadLocal.withInitial(NearestNodesSelector::new);
+
     public RouteTable(byte[] selfNodeId) {
         this.selfNodeId = selfNodeId;
-        buckets = new CopyOnWriteArrayList<>();
-        buckets.add(new Bucket(BigInteger.ZERO, BigInteger.valueOf(2).pow(160)));
+        self0 = Util.longAt(selfNodeId, 0);
+        self1 = Util.longAt(selfNodeId, 8);
+        self2 = Util.intAt(selfNodeId, 16);
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new Bucket();
+        }
+        bucketCount = 1;
+    }
+
+    public int bucketCount() {
+        return bucketCount;
+    }
+
+    public Bucket bucket(int index) {
+        return buckets[index];
     }
 
     public boolean isEmpty() {
-        return buckets.stream().noneMatch((bucket) -> (!bucket.nodes.isEmpty()));
+        for (int i = 0, n = bucketCount; i < n; i++) {
+            if (buckets[i].size() > 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    public void add(Node node, BiConsumer<Node, Node> copyNewToOld) throws BucketFullException {
-        if (!Arrays.equals(selfNodeId, node.id)) {
-            int index = bucketIndex(node.id);
-            Bucket bucket = buckets.get(index);
+    /**
+     * @return false if the node only made it into the replacement cache of a
+     * full bucket
+     */
+    public boolean add(Node node, BiConsumer<Node, Node> copyNewToOld) {
+        if (node.id.length != 20 || Arrays.equals(selfNodeId, node.id)) {
+            return false;
+        }
+        int prefixLength = prefixLength(node.id);
+        while (true) {
+            int count = bucketCount;
+            int index = Math.min(prefixLength, count - 1);
+            Bucket bucket = buckets[index];
+            long stamp = bucket.lock.writeLock();
             try {
-                bucket.add(node, copyNewToOld);
-            } catch (BucketFullException ex) {
-                if (bucket.isInRange(selfNodeId)) {
-                    splitBucket(index);
-                    add(node, copyNewToOld);
+                if (index == count - 1 && count != bucketCount) {
+                    // the bucket split before we locked it
+                    continue;
+                }
+                if (bucket.add(node, copyNewToOld)) {
+                    return true;
+                }
+                if (index != count - 1 || count == ID_BITS) {
+                    return false;
+                }
+                // the split also moves the replacements, the node included
+                Bucket next = buckets[count];
+                long nextStamp = next.lock.writeLock();
+                try {
+                    bucket.split(this, index, next);
+                    bucketCount = count + 1;
+                } finally {
+                    next.lock.unlockWrite(nextStamp);
                 }
+            } finally {
+                bucket.lock.unlockWrite(stamp);
             }
         }
     }
 
-    public void add(Node node) throws BucketFullException {
-        add(node, (newNode, oldNode) -> {
+    public boolean add(Node node) {
+        return add(node, (newNode, oldNode) -> {
         });
     }
 
-    private int bucketIndex(byte[] nodeId) {
-        int i = 0;
-        for (Bucket bucket : buckets) {
-            if (bucket.isInRange(nodeId)) {
-                return i;
+    public Node find(byte[] nodeId) {
+        int prefixLength = prefixLength(nodeId);
+        while (true) {
+            int count = bucketCount;
+            Node node = buckets[Math.min(prefixLength, count - 1)].find(nodeId);
+            if (count == bucketCount) {
+                return node;
             }
-            i++;
         }
-        return i - 1;
     }
 
-    private void splitBucket(int bucketIndex) throws BucketFullException {
-        Bucket oldBucket = buckets.get(bucketIndex);
-        BigInteger point = oldBucket.max.subtract(oldBucket.max.subtract(oldBucket.min).divide(BigInteger.valueOf(2)));
-        Bucket newBucket = new Bucket(point, oldBucket.max);
-        oldBucket.max = point;
-        buckets.add(bucketIndex + 1, newBucket);
-        for (Node node : oldBucket.nodes) {
-            if (newBucket.isInRange(node.id)) {
-                newBucket.add(node);
-                oldBucket.remove(node);
+    /**
+     * @return the least recently seen node of the bucket the id falls into
+     */
+    public Node leastRecentlySeen(byte[] nodeId) {
+        return buckets[Math.min(prefixLength(nodeId), bucketCount - 1)].leastRecentlySeen();
+    }
+
+    /**
+     * Removes the node, promoting a replacement in its place if its bucket
+     * has one.
+     */
+    public void remove(Node node) {
+        int prefixLength = prefixLength(node.id);
+        while (true) {
+            int count = bucketCount;
+            int index = Math.min(prefixLength, count - 1);
+            Bucket bucket = buckets[index];
+            long stamp = bucket.lock.writeLock();
+            try {
+                if (index == count - 1 && count != bucketCount) {
+                    continue;
+                }
+                bucket.remove(node);
+                return;
+            } finally {
+                bucket.lock.unlockWrite(stamp);
             }
         }
     }
 
+    /**
+     * @return number of leading bits nodeId shares with selfNodeId
+     */
+    public int prefixLength(byte[] nodeId) {
+        long distance = self0 ^ Util.longAt(nodeId, 0);
+        if (distance != 0) {
+            return Long.numberOfLeadingZeros(distance);
+        }
+        distance = self1 ^ Util.longAt(nodeId, 8);
+        if (distance != 0) {
+            return 64 + Long.numberOfLeadingZeros(distance);
+        }
+        int lastDistance = self2 ^ Util.intAt(nodeId, 16);
+        if (lastDistance != 0) {
+            return 128 + Integer.numberOfLeadingZeros(lastDistance);
+        }
+        return ID_BITS;
+    }
+
+    /**
+     * @return a random id falling into the bucket
+     */
+    public byte[] randomId(int bucketIndex) {
+        if (bucketIndex == bucketCount - 1) {
+            return Util.randomId(selfNodeId, bucketIndex);
+        }
+        byte[] prefix = selfNodeId.clone();
+        prefix[bucketIndex >>> 3] ^= 0x80 >>> (bucketIndex & 7);
+        return Util.randomId(prefix, bucketIndex + 1);
+    }
+
     public List<Node> nearestNodes(byte[] nodeIdOrInfoHash) {
-        List<Node> nodes = new LinkedList<>();
-        if (buckets.isEmpty()) {
-            return nodes;
-        }
-        int bucketIndex = bucketIndex(nodeIdOrInfoHash);
-        nodes.addAll(buckets.get(bucketIndex).nodes);
-        int minBucketIndex = bucketIndex - 1;
-        int maxBucketIndex = bucketIndex + 1;
-        while ((nodes.size() < Bucket.K) && (minBucketIndex >= 0 || maxBucketIndex < buckets.size())) {
-            if (minBucketIndex >= 0) {
-                nodes.addAll(buckets.get(minBucketIndex).nodes);
+        Node[] nodes = new Node[Bucket.K];
+        return Arrays.asList(nodes).subList(0, nearestNodes(nodeIdOrInfoHash, nodes));
+    }
+
+    /**
+     * Fills nodes with up to K nodes closest to the target, nearest first,
+     * without allocating.
+     * <p>
+     * Buckets are visited in order of distance, so the visit stops once K
+     * nodes are found. Say the target shares b bits with selfNodeId. Bucket b
+     * shares more than b bits with the target and comes first, while every
+     * earlier bucket i shares only i and comes last, nearest first. The
+     * later buckets share exactly b bits, and bucket i among them is nearer
+     * than all those after it when the target differs from selfNodeId at bit
+     * i and farther otherwise. So those buckets where the target differs come
+     * next in ascending order, then the last bucket, then the rest in
+     * descending order.
+     *
+     * @return the number of nodes written
+     */
+    public int nearestNodes(byte[] nodeIdOrInfoHash, Node[] nodes) {
+        NearestNodesSelector selector = selectors.get();
+        int prefixLength = prefixLength(nodeIdOrInfoHash);
+        while (true) {
+            selector.reset(nodeIdOrInfoHash);
+            int count = bucketCount;
+            int last = count - 1;
+            int bucketIndex = Math.min(prefixLength, last);
+            if (bucketIndex < last) {
+                selector.offerAll(buckets[bucketIndex]);
+                for (int i = bucketIndex + 1; i < last && !selector.isFull(); i++) {
+                    if (differs(nodeIdOrInfoHash, i)) {
+                        selector.offerAll(buckets[i]);
+                    }
+                }
+            }
+            if (!selector.isFull()) {
+                selector.offerAll(buckets[last]);
+            }
+            for (int i = last - 1; i > bucketIndex && !selector.isFull(); i--) {
+                if (!differs(nodeIdOrInfoHash, i)) {
+                    selector.offerAll(buckets[i]);
+                }
             }
-            if (maxBucketIndex < buckets.size()) {
-                nodes.addAll(buckets.get(maxBucketIndex).nodes);
+            for (int i = bucketIndex - 1; i >= 0 && !selector.isFull(); i--) {
+                selector.offerAll(buckets[i]);
             }
-            minBucketIndex--;
-            maxBucketIndex++;
+            if (count == bucketCount) {
+                return selector.drainTo(nodes);
+            }
+        }
+    }
+
+    /**
+     * @return whether the id differs from selfNodeId at the bit
+     */
+    private boolean differs(byte[] id, int bit) {
+        return ((id[bit >>> 3] ^ selfNodeId[bit >>> 3]) & (0x80 >>> (bit & 7))) != 0;
+    }
+
+    /**
+     * Compares the XOR distances of two ids to a target as unsigned words.
+     */
+    public static int compareDistance(byte[] target, byte[] id1, byte[] id2) {
+        long target0 = Util.longAt(target, 0);
+        int result = Long.compareUnsigned(target0 ^ Util.longAt(id1, 0), target0 ^ Util.longAt(id2, 0));
+        if (result != 0) {
+            return result;
+        }
+        long target1 = Util.longAt(target, 8);
+        result = Long.compareUnsigned(target1 ^ Util.longAt(id1, 8), target1 ^ Util.longAt(id2, 8));
+        if (result != 0) {
+            return result;
+        }
+        int target2 = Util.intAt(target, 16);
+        return Integer.compareUnsigned(target2 ^ Util.intAt(id1, 16), target2 ^ Util.intAt(id2, 16));
+    }
+
+    /**
+     * Max-heap of the K nearest nodes seen so far, keyed by XOR distance held
+     * as unsigned words.
+     */
+    private static final class NearestNodesSelector {
+
+        private final Node[] nodes = new Node[Bucket.K];
+        private final Node[] bucketNodes = new Node[Bucket.K];
+        private final long[] distances0 = new long[Bucket.K];
+        private final long[] distances1 = new long[Bucket.K];
+        private final int[] distances2 = new int[Bucket.K];
+        private int size;
+        private long target0;
+        private long target1;
+        private int target2;
+
+        private void reset(byte[] target) {
+            target0 = Util.longAt(target, 0);
+            target1 = Util.longAt(target, 8);
+            target2 = Util.intAt(target, 16);
+            size = 0;
+        }
+
+        private boolean isFull() {
+            return size == Bucket.K;
+        }
+
+        private void offerAll(Bucket bucket) {
+            int count = bucket.nodes(bucketNodes);
+            for (int i = 0; i < count; i++) {
+                offer(bucketNodes[i]);
+            }
+            Arrays.fill(bucketNodes, 0, count, null);
+        }
+
+        private void offer(Node node) {
+            long distance0 = target0 ^ Util.longAt(node.id, 0);
+            long distance1 = target1 ^ Util.longAt(node.id, 8);
+            int distance2 = target2 ^ Util.intAt(node.id, 16);
+            if (size < Bucket.K) {
+                int i = size++;
+                while (i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    if (compare(distance0, distance1, distance2, parent) <= 0) {
+                        break;
+                    }
+                    move(parent, i);
+                    i = parent;
+                }
+                set(i, node, distance0, distance1, distance2);
+            } else if (compare(distance0, distance1, distance2, 0) < 0) {
+                siftDown(node, distance0, distance1, distance2, size);
+            }
+        }
+
+        /**
+         * Places an entry at the root of the first heapSize elements.
+         */
+        private void siftDown(Node node, long distance0, long distance1, int distance2, int heapSize) {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= heapSize) {
+                    break;
+                }
+                if (child + 1 < heapSize && compare(child + 1, child) > 0) {
+                    child++;
+                }
+                if (compare(distance0, distance1, distance2, child) >= 0) {
+                    break;
+                }
+                move(child, i);
+                i = child;
+            }
+            set(i, node, distance0, distance1, distance2);
+        }
+
+        /**
+         * Heap-sorts the entries into dst, nearest first.
+         */
+        private int drainTo(Node[] dst) {
+            int count = size;
+            for (int heapSize = size - 1; heapSize >= 0; heapSize--) {
+                dst[heapSize] = nodes[0];
+                siftDown(nodes[heapSize], distances0[heapSize], distances1[heapSize],
+                        distances2[heapSize], heapSize);
+            }
+            Arrays.fill(nodes, 0, count, null);
+            size = 0;
+            return count;
+        }
+
+        private int compare(long distance0, long distance1, int distance2, int i) {
+            int result = Long.compareUnsigned(distance0, distances0[i]);
+            if (result != 0) {
+                return result;
+            }
+            result = Long.compareUnsigned(distance1, distances1[i]);
+            if (result != 0) {
+                return result;
+            }
+            return Integer.compareUnsigned(distance2, distances2[i]);
+        }
+
+        private int compare(int i, int j) {
+            return compare(distances0[i], distances1[i], distances2[i], j);
+        }
+
+        private void move(int from, int to) {
+            set(to, nodes[from], distances0[from], distances1[from], distances2[from]);
+        }
+
+        private void set(int i, Node node, long distance0, long distance1, int distance2) {
+            nodes[i] = node;
+            distances0[i] = distance0;
+            distances1[i] = distance1;
+            distances2[i] = distance2;
         }
-        BigInteger nodeIdOrInfoHashInt = Util.nodeIdToInt(nodeIdOrInfoHash);
-        nodes.sort((Node node1, Node node2) -> nodeIdOrInfoHashInt.xor(Util.nodeIdToInt(node1.id)).subtract(nodeIdOrInfoHashInt.xor(Util.nodeIdToInt(node2.id))).signum());
-        return nodes.subList(0, Bucket.K > nodes.size() ? nodes.size() : Bucket.K);
     }
 }
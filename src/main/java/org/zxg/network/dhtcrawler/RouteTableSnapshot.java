@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of a route table: a header with our node id, then for every
+ * IPv4 node its id, address, port, last request and reply times and whether
+ * it ever replied, followed by a CRC32 of everything before it. Buckets are
+ * not stored since adding the nodes back splits them the same way.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+public class RouteTableSnapshot {
+
+    private static final int MAGIC = 0x44485452;
+    private static final int VERSION = 1;
+
+    /**
+     * Writes to a temporary file next to file and renames it over file, so a
+     * crash never leaves a partial snapshot behind.
+     */
+    public static void save(RouteTable routeTable, Path file) throws IOException {
+        Path absoluteFile = file.toAbsolutePath();
+        Path tempFile = Files.createTempFile(absoluteFile.getParent(), absoluteFile.getFileName().toString(), ".tmp");
+        try {
+            CRC32 crc = new CRC32();
+            try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tempFile)), crc))) {
+                write(routeTable, out);
+                out.writeLong(crc.getValue());
+            }
+            Files.move(tempFile, absoluteFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private static void write(RouteTable routeTable, DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.write(routeTable.selfNodeId);
+        List<Node> ipv4Nodes = new ArrayList<>();
+        Node[] nodes = new Node[Bucket.K];
+        byte[] compactIpPort = new byte[6];
+        for (int i = 0; i < routeTable.bucketCount(); i++) {
+            int count = routeTable.bucket(i).nodes(nodes);
+            for (int j = 0; j < count; j++) {
+                if (Util.compactIpPort(nodes[j].ip, nodes[j].port, compactIpPort, 0)) {
+                    ipv4Nodes.add(nodes[j]);
+                }
+            }
+        }
+        out.writeInt(ipv4Nodes.size());
+        for (Node node : ipv4Nodes) {
+            Util.compactIpPort(node.ip, node.port, compactIpPort, 0);
+            out.write(node.id);
+            out.write(compactIpPort);
+            out.writeLong(node.lastReqTime);
+            out.writeLong(node.lastReplyTime);
+            out.writeBoolean(node.replied);
+        }
+    }
+
+    /**
+     * @return the route table, or null if there is no snapshot
+     * @throws IOException if the snapshot is unreadable or corrupt
+     */
+    public static RouteTable load(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(file)), crc))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a route table snapshot: " + file);
+            }
+            byte[] selfNodeId = new byte[20];
+            in.readFully(selfNodeId);
+            RouteTable routeTable = new RouteTable(selfNodeId);
+            int count = in.readInt();
+            if (count < 0 || count > RouteTable.ID_BITS * Bucket.K) {
+                throw new IOException("corrupt route table snapshot: " + file);
+            }
+            byte[] compactIpPort = new byte[6];
+            for (int i = 0; i < count; i++) {
+                byte[] id = new byte[20];
+                in.readFully(id);
+                in.readFully(compactIpPort);
+                Node node = new Node(id, (compactIpPort[0] & 0xff) + "." + (compactIpPort[1] & 0xff)
+                        + "." + (compactIpPort[2] & 0xff) + "." + (compactIpPort[3] & 0xff),
+                        ((compactIpPort[4] & 0xff) << 8) | (compactIpPort[5] & 0xff));
+                node.lastReqTime = in.readLong();
+                node.lastReplyTime = in.readLong();
+                node.replied = in.readBoolean();
+                routeTable.add(node);
+            }
+            long expectedCrc = crc.getValue();
+            if (in.readLong() != expectedCrc) {
+                throw new IOException("corrupt route table snapshot: " + file);
+            }
+            return routeTable;
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+public class SocketUdpTransport implements UdpTransport {
+
+    private final DatagramSocket socket;
+    private final ThreadLocal<DatagramPacket> sendPackets = ThreadLocal.withInitial(() -> new DatagramPacket(new byte[0], 0));
+
+    public SocketUdpTransport(String host, int port) throws SocketException {
+        socket = new DatagramSocket(new InetSocketAddress(host, port));
+    }
+
+    @Override
+    public void send(Addr addr, ByteBuffer data) throws IOException {
+        DatagramPacket datagramPacket = sendPackets.get();
+        if (data.hasArray()) {
+            datagramPacket.setData(data.array(), data.arrayOffset() + data.position(),
+                    data.remaining());
+        } else {
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            datagramPacket.setData(bytes);
+        }
+        datagramPacket.setSocketAddress(addr.toSocketAddress());
+        socket.send(datagramPacket);
+    }
+
+    @Override
+    public UdpMsg receive() throws IOException {
+        byte[] buffer = new byte[65536];
+        DatagramPacket datagramPacket = new DatagramPacket(buffer,
+                buffer.length);
+        socket.receive(datagramPacket);
+        UdpMsg msg = new UdpMsg();
+        msg.data = new byte[datagramPacket.getLength()];
+        System.arraycopy(datagramPacket.getData(), datagramPacket.getOffset(),
+                msg.data, 0, datagramPacket.getLength());
+        msg.buffer = ByteBuffer.wrap(msg.data);
+        InetSocketAddress socketAddress = (InetSocketAddress) datagramPacket
+                .getSocketAddress();
+        msg.addr = new Addr(socketAddress.getHostString(), socketAddress.getPort());
+        return msg;
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed capacity table of outstanding requests. A transaction id is a 4 byte
+ * big-endian integer holding a slot index in its high bits and the slot
+ * generation in its low bits. Slots are handed out round robin, so an entry
+ * whose reply never came is simply overwritten when its slot comes round
+ * again and the bumped generation makes late replies to it unknown. Memory
+ * is bounded by the capacity whatever the send rate.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+public class TransactionTable {
+
+    public static final int TID_LENGTH = 4;
+
+    private static final String[] METHODS = {null, "ping", "find_node", "get_peers", "announce_peer",
+        "sample_infohashes"};
+
+    private final int indexBits;
+    private final int generationMask;
+    private final int slotMask;
+    /**
+     * Per slot generation shifted left by 8 bits, or'ed with the method code;
+     * method code 0 means the slot is free.
+     */
+    private final AtomicLongArray states;
+    private final long[] sendTimes;
+    private final AtomicReferenceArray<Object> attachments;
+    private final AtomicInteger cursor = new AtomicInteger();
+    private final long timeout;
+
+    /**
+     * @param capacity rounded up to a power of two, at most 2^24
+     * @param timeout milliseconds after which a reply is no longer accepted
+     */
+    public TransactionTable(int capacity, long timeout) {
+        this.timeout = timeout;
+        int size = Integer.highestOneBit(Math.max(2, Math.min(capacity, 1 << 24)) - 1) << 1;
+        this.indexBits = Integer.numberOfTrailingZeros(size);
+        this.slotMask = size - 1;
+        this.generationMask = (int) ((1L << (32 - indexBits)) - 1);
+        this.states = new AtomicLongArray(size);
+        this.sendTimes = new long[size];
+        this.attachments = new AtomicReferenceArray<>(size);
+    }
+
+    public static int methodCode(String method) {
+        for (int i = 1; i < METHODS.length; i++) {
+            if (METHODS[i].equals(method)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(method);
+    }
+
+    /**
+     * @return the transaction id of the new entry
+     */
+    public byte[] add(String method, long currentTime) {
+        int code = methodCode(method);
+        int slot = cursor.getAndIncrement() & slotMask;
+        int generation = (generation(states.get(slot)) + 1) & generationMask;
+        sendTimes[slot] = currentTime;
+        attachments.set(slot, null);
+        states.set(slot, ((long) generation << 8) | code);
+        int tid = (slot << (32 - indexBits)) | generation;
+        return new byte[]{(byte) (tid >>> 24), (byte) (tid >>> 16), (byte) (tid >>> 8), (byte) tid};
+    }
+
+    /**
+     * @return the method of the request, or null if the transaction id is not
+     * outstanding
+     */
+    public String remove(byte[] tid, long currentTime) {
+        if (tid == null || tid.length != TID_LENGTH) {
+            return null;
+        }
+        int value = value(tid);
+        int slot = slot(value);
+        while (true) {
+            long state = states.get(slot);
+            if (!matches(state, slot, value, currentTime)) {
+                return null;
+            }
+            if (states.compareAndSet(slot, state, state & ~0xffL)) {
+                return METHODS[(int) (state & 0xff)];
+            }
+        }
+    }
+
+    /**
+     * Associates an object with an entry, for the caller to take back once the
+     * entry has been removed.
+     */
+    public void attach(byte[] tid, Object attachment) {
+        attachments.set(slot(value(tid)), attachment);
+    }
+
+    /**
+     * @return the object attached to the entry, which is forgotten
+     */
+    public Object detach(byte[] tid) {
+        return attachments.getAndSet(slot(value(tid)), null);
+    }
+
+    /**
+     * Checks a transaction id in place, without removing it.
+     */
+    public boolean contains(ByteBuffer buffer, int offset, int length, long currentTime) {
+        if (offset < 0 || length != TID_LENGTH) {
+            return false;
+        }
+        int value = buffer.getInt(offset);
+        int slot = slot(value);
+        return matches(states.get(slot), slot, value, currentTime);
+    }
+
+    private static int value(byte[] tid) {
+        return ((tid[0] & 0xff) << 24) | ((tid[1] & 0xff) << 16)
+                | ((tid[2] & 0xff) << 8) | (tid[3] & 0xff);
+    }
+
+    private int slot(int tid) {
+        return (tid >>> (32 - indexBits)) & slotMask;
+    }
+
+    private boolean matches(long state, int slot, int tid, long currentTime) {
+        return (state & 0xff) != 0 && generation(state) == (tid & generationMask)
+                && currentTime - sendTimes[slot] <= timeout;
+    }
+
+    private static int generation(long state) {
+        return (int) (state >>> 8);
+    }
+}
@@ -16,6 +16,8 @@
  */
 package org.zxg.network.dhtcrawler;
 
+import java.nio.ByteBuffer;
+
 /**
  *
  * @author Xianguang Zhou <xianguang.zhou@outlook.com>
@@ -24,4 +26,15 @@ public class UdpMsg {
 
     public Addr addr;
     public byte[] data;
+    /**
+     * Received datagram, between position and limit.
+     */
+    public ByteBuffer buffer;
+    public UdpMsgPool pool;
+
+    public void release() {
+        if (pool != null) {
+            pool.release(this);
+        }
+    }
 }
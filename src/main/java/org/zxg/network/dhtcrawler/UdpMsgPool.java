@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of datagram messages backed by buffers of a fixed size. Messages
+ * are allocated on demand when the pool is empty and at most capacity of them
+ * are kept once released.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+public class UdpMsgPool {
+
+    /**
+     * KRPC datagrams stay well below the Ethernet MTU; anything longer than
+     * this is truncated by the channel and then fails to decode.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 2048;
+
+    private final int bufferSize;
+    private final boolean direct;
+    private final BlockingQueue<UdpMsg> msgs;
+
+    public UdpMsgPool(int capacity) {
+        this(capacity, DEFAULT_BUFFER_SIZE, true);
+    }
+
+    public UdpMsgPool(int capacity, int bufferSize, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.msgs = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    public UdpMsg acquire() {
+        UdpMsg msg = msgs.poll();
+        if (msg == null) {
+            msg = new UdpMsg();
+            msg.buffer = direct ? ByteBuffer.allocateDirect(bufferSize)
+                    : ByteBuffer.allocate(bufferSize);
+            msg.pool = this;
+        }
+        msg.buffer.clear();
+        return msg;
+    }
+
+    void release(UdpMsg msg) {
+        msg.addr = null;
+        msgs.offer(msg);
+    }
+}
@@ -22,8 +22,6 @@ import com.turn.ttorrent.bcodec.BEncoder;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.math.BigDecimal;
-import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Random;
@@ -50,12 +48,78 @@ public class Util {
         return messageDigest.digest();
     }
 
-    public static byte[] randomId(BigInteger min, BigInteger max) {
-        return new BigDecimal(max.subtract(min)).multiply(new BigDecimal(random.nextFloat())).toBigInteger().add(min).toByteArray();
+    /**
+     * @return a random id whose first prefixLength bits are those of prefix
+     */
+    public static byte[] randomId(byte[] prefix, int prefixLength) {
+        byte[] id = entropy(20);
+        int bytes = prefixLength >>> 3;
+        System.arraycopy(prefix, 0, id, 0, bytes);
+        int bits = prefixLength & 7;
+        if (bits != 0) {
+            int mask = 0xff00 >>> bits;
+            id[bytes] = (byte) ((prefix[bytes] & mask) | (id[bytes] & ~mask));
+        }
+        return id;
+    }
+
+    /**
+     * @return the big-endian 64 bit word at offset
+     */
+    public static long longAt(byte[] bytes, int offset) {
+        return ((long) intAt(bytes, offset) << 32) | (intAt(bytes, offset + 4) & 0xffffffffL);
+    }
+
+    /**
+     * @return the big-endian 32 bit word at offset
+     */
+    public static int intAt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
     }
 
-    public static BigInteger nodeIdToInt(byte[] nodeId) {
-        return new BigInteger(1, nodeId);
+    /**
+     * MurmurHash3 finalizer: spreads every input bit over the whole word.
+     */
+    public static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * Writes the 6 byte compact form of a dotted IPv4 address and a port.
+     *
+     * @return false if the address is not a dotted IPv4 address
+     */
+    public static boolean compactIpPort(String ip, int port, byte[] dst, int offset) {
+        int part = 0;
+        int value = 0;
+        int digits = 0;
+        for (int i = 0, n = ip.length(); i <= n; i++) {
+            char c = i < n ? ip.charAt(i) : '.';
+            if (c == '.') {
+                if (digits == 0 || value > 255 || part > 3) {
+                    return false;
+                }
+                dst[offset + part++] = (byte) value;
+                value = 0;
+                digits = 0;
+            } else if (c >= '0' && c <= '9' && digits < 3) {
+                value = value * 10 + (c - '0');
+                digits++;
+            } else {
+                return false;
+            }
+        }
+        if (part != 4) {
+            return false;
+        }
+        dst[offset + 4] = (byte) (port >>> 8);
+        dst[offset + 5] = (byte) port;
+        return true;
     }
 
     public static BEValue bdecode(byte[] data, int offset, int length)
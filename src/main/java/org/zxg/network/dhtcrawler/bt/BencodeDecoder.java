@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler.bt;
+
+import com.turn.ttorrent.bcodec.BEValue;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bencode decoder for what peers send. Unlike BDecoder, which allocates
+ * whatever a string length prefix claims before reading it, every length is
+ * checked against the bytes left first and nesting is bounded, so a few bytes
+ * can neither exhaust the heap nor the stack.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+class BencodeDecoder {
+
+    private static final int MAX_DEPTH = 32;
+
+    private final byte[] data;
+    private final int limit;
+    private int position;
+
+    BencodeDecoder(byte[] data, int offset, int length) {
+        this.data = data;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    BencodeDecoder(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    /**
+     * @return the offset just past the last value decoded
+     */
+    int position() {
+        return position;
+    }
+
+    BEValue decode() throws IOException {
+        return decode(0);
+    }
+
+    private BEValue decode(int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("nesting too deep");
+        }
+        byte c = peek();
+        if (c == 'i') {
+            return new BEValue(readInt());
+        } else if (c == 'l') {
+            position++;
+            List<BEValue> list = new ArrayList<>();
+            while (peek() != 'e') {
+                list.add(decode(depth + 1));
+            }
+            position++;
+            return new BEValue(list);
+        } else if (c == 'd') {
+            position++;
+            Map<String, BEValue> map = new HashMap<>();
+            while (peek() != 'e') {
+                int keyLength = readStringLength();
+                String key = new String(data, position, keyLength, StandardCharsets.UTF_8);
+                position += keyLength;
+                map.put(key, decode(depth + 1));
+            }
+            position++;
+            return new BEValue(map);
+        } else {
+            int length = readStringLength();
+            byte[] bytes = new byte[length];
+            System.arraycopy(data, position, bytes, 0, length);
+            position += length;
+            return new BEValue(bytes);
+        }
+    }
+
+    private byte peek() throws IOException {
+        if (position >= limit) {
+            throw new IOException("unexpected end of data");
+        }
+        return data[position];
+    }
+
+    private int readStringLength() throws IOException {
+        long length = 0;
+        byte c;
+        int start = position;
+        while ((c = peek()) != ':') {
+            if (c < '0' || c > '9' || position - start > 9) {
+                throw new IOException("invalid string length at " + start);
+            }
+            length = length * 10 + (c - '0');
+            position++;
+        }
+        if (position == start) {
+            throw new IOException("invalid string length at " + start);
+        }
+        position++;
+        if (length > limit - position) {
+            throw new IOException("string exceeds data at " + start);
+        }
+        return (int) length;
+    }
+
+    private long readInt() throws IOException {
+        position++;
+        boolean negative = false;
+        if (peek() == '-') {
+            negative = true;
+            position++;
+        }
+        long value = 0;
+        byte c;
+        int start = position;
+        while ((c = peek()) != 'e') {
+            if (c < '0' || c > '9' || position - start > 18) {
+                throw new IOException("invalid integer at " + start);
+            }
+            value = value * 10 + (c - '0');
+            position++;
+        }
+        if (position == start) {
+            throw new IOException("invalid integer at " + start);
+        }
+        position++;
+        return negative ? -value : value;
+    }
+}
@@ -16,33 +16,256 @@
  */
 package org.zxg.network.dhtcrawler.bt;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+import org.zxg.network.dhtcrawler.CrawlerConfig;
 import org.zxg.network.dhtcrawler.CrawlerListener;
+import org.zxg.network.dhtcrawler.MetaData;
 
 /**
+ * Admits metadata downloads into a bounded queue ordered by priority and
+ * runs at most metaDataConcurrency of them at once. There is one download
+ * per infohash: announcing peers of an infohash already queued or being
+ * fetched just become more candidates for it. When the queue is full a new
+ * download only gets in by pushing out one of lower priority.
  *
  * @author Xianguang Zhou <xianguang.zhou@outlook.com>
  */
 public class BtCrawler {
 
-    private ExecutorService executorService;
+    private static final Comparator<Download> BY_PRIORITY = Comparator
+            .comparingLong((Download download) -> download.priority)
+            .thenComparingLong(download -> -download.sequence);
+
+    private MetaDataFetcher fetcher;
     private CrawlerListener crawlerListener;
+    private CrawlerConfig config;
+
+    private final Map<ByteBuffer, Download> downloads = new HashMap<>();
+    /**
+     * Lowest priority first; among equals the latest first.
+     */
+    private final TreeSet<Download> queue = new TreeSet<>(BY_PRIORITY);
+    private int runningCount;
+    private long nextSequence;
+
+    private final LongAdder mergedCount = new LongAdder();
+    private final LongAdder foundPeerCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder evictedCount = new LongAdder();
+    private final LongAdder fetchedCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+
+    private static final class Download {
+
+        private final byte[] infoHash;
+        private final long sequence;
+        private long priority;
+        private List<InetSocketAddress> peers = new ArrayList<>();
+        /**
+         * Null while queued.
+         */
+        private MetaDataFetch fetch;
 
-    public BtCrawler(CrawlerListener crawlerListener) {
+        private Download(byte[] infoHash, long sequence, long priority) {
+            this.infoHash = infoHash;
+            this.sequence = sequence;
+            this.priority = priority;
+        }
+    }
+
+    public BtCrawler(CrawlerListener crawlerListener, CrawlerConfig config) {
         this.crawlerListener = crawlerListener;
+        this.config = config;
     }
 
-    public void start() {
-        executorService = Executors.newCachedThreadPool();
+    public void start() throws IOException {
+        fetcher = new MetaDataFetcher(config.metaDataFetchThreads, config.metaDataConnectTimeout,
+                config.metaDataFetchTimeout, config.metaDataMaxSize, config.metaDataMaxPeers,
+                config.metaDataRacePeers);
+        fetcher.start();
     }
 
     public void stop() {
-        executorService.shutdownNow();
+        fetcher.stop();
     }
 
-    public void downloadMetaData(byte[] infoHash, String peerIp, int peerPort, byte[] peerNodeId) {
-        executorService.submit(new MetaDataDownloadTask(infoHash, peerIp, peerPort, peerNodeId, this.crawlerListener));
+    /**
+     * Queues a download of the infohash's metadata from the peer, or adds
+     * the peer to the download already queued or running, raising its
+     * priority if it is still queued.
+     *
+     * @param priority downloads with higher values run first, for example
+     * how often the infohash was asked for lately
+     * @return true if a new download was queued, which is worth looking for
+     * more peers for
+     */
+    public synchronized boolean downloadMetaData(byte[] infoHash, String peerIp, int peerPort, long priority) {
+        Download existing = downloads.get(ByteBuffer.wrap(infoHash));
+        if (existing != null) {
+            raisePriority(existing, priority);
+            mergedCount.increment();
+            addPeer(existing, peerIp, peerPort);
+            return false;
+        }
+        Download download = new Download(infoHash, nextSequence++, priority);
+        download.peers.add(new InetSocketAddress(peerIp, peerPort));
+        if (queue.size() >= config.metaDataQueueCapacity) {
+            Download lowest = queue.first();
+            if (BY_PRIORITY.compare(download, lowest) <= 0) {
+                rejectedCount.increment();
+                return false;
+            }
+            queue.pollFirst();
+            downloads.remove(ByteBuffer.wrap(lowest.infoHash));
+            evictedCount.increment();
+        }
+        downloads.put(ByteBuffer.wrap(infoHash), download);
+        queue.add(download);
+        startQueued();
+        return true;
     }
 
+    /**
+     * Adds the peer to the download of the infohash if there is one, raising
+     * its priority if it is still queued.
+     *
+     * @return false if the infohash is neither queued nor being fetched
+     */
+    public synchronized boolean offerPeer(byte[] infoHash, String peerIp, int peerPort, long priority) {
+        Download download = downloads.get(ByteBuffer.wrap(infoHash));
+        if (download == null) {
+            return false;
+        }
+        raisePriority(download, priority);
+        mergedCount.increment();
+        addPeer(download, peerIp, peerPort);
+        return true;
+    }
+
+    /**
+     * Adds a peer found by a search, rather than announced, to the download
+     * of the infohash if there is one.
+     *
+     * @return false if the infohash is neither queued nor being fetched
+     */
+    public synchronized boolean offerFoundPeer(byte[] infoHash, String peerIp, int peerPort) {
+        Download download = downloads.get(ByteBuffer.wrap(infoHash));
+        if (download == null) {
+            return false;
+        }
+        foundPeerCount.increment();
+        addPeer(download, peerIp, peerPort);
+        return true;
+    }
+
+    private void raisePriority(Download download, long priority) {
+        if (download.fetch == null && priority > download.priority) {
+            // the queue is ordered by priority, so the download moves
+            queue.remove(download);
+            download.priority = priority;
+            queue.add(download);
+        }
+    }
+
+    /**
+     * @return true while the infohash is queued or being fetched
+     */
+    public synchronized boolean isDownloading(byte[] infoHash) {
+        return downloads.containsKey(ByteBuffer.wrap(infoHash));
+    }
+
+    private void addPeer(Download download, String peerIp, int peerPort) {
+        if (download.fetch != null) {
+            download.fetch.offerPeer(peerIp, peerPort);
+        } else if (download.peers.size() < config.metaDataMaxPeers) {
+            download.peers.add(new InetSocketAddress(peerIp, peerPort));
+        }
+    }
+
+    /**
+     * Hands the queued downloads that fit under the concurrency cap to the
+     * fetcher, highest priority first. The fetcher calls back on its own
+     * threads, so this never reenters.
+     */
+    private void startQueued() {
+        while (runningCount < config.metaDataConcurrency && !queue.isEmpty()) {
+            Download download = queue.pollLast();
+            runningCount++;
+            download.fetch = fetcher.fetch(download.infoHash, download.peers, new MetaDataFetcher.Listener() {
+                @Override
+                public void fetched(byte[] infoHash, MetaData metaData) {
+                    fetchedCount.increment();
+                    finished(download);
+                    crawlerListener.metaData(infoHash, metaData);
+                }
+
+                @Override
+                public void failed(byte[] infoHash) {
+                    failedCount.increment();
+                    finished(download);
+                }
+            });
+            download.peers = null;
+        }
+    }
+
+    private synchronized void finished(Download download) {
+        downloads.remove(ByteBuffer.wrap(download.infoHash));
+        runningCount--;
+        startQueued();
+    }
+
+    public synchronized int queuedCount() {
+        return queue.size();
+    }
+
+    public synchronized int runningCount() {
+        return runningCount;
+    }
+
+    /**
+     * @return announces that joined a download already queued or running
+     */
+    public long mergedCount() {
+        return mergedCount.sum();
+    }
+
+    /**
+     * @return peers from get_peers values added to a download
+     */
+    public long foundPeerCount() {
+        return foundPeerCount.sum();
+    }
+
+    /**
+     * @return downloads turned away because the queue was full of ones of
+     * higher priority
+     */
+    public long rejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * @return queued downloads pushed out by ones of higher priority
+     */
+    public long evictedCount() {
+        return evictedCount.sum();
+    }
+
+    public long fetchedCount() {
+        return fetchedCount.sum();
+    }
+
+    public long failedCount() {
+        return failedCount.sum();
+    }
 }
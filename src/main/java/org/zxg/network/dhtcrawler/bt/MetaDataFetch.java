@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler.bt;
+
+import com.turn.ttorrent.bcodec.BEValue;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.zxg.network.dhtcrawler.MetaData;
+
+/**
+ * The metadata of one infohash being put together from ut_metadata pieces.
+ * Up to racePeers candidate peers are connected at once and each is asked
+ * for pieces nobody else has been asked for; once none are left, idle peers
+ * also ask for the ones still outstanding elsewhere, and whichever copy
+ * arrives first counts. The other connections are closed as soon as the
+ * whole is verified. When the hash does not match and several peers sent
+ * pieces, they are trusted one at a time until the one lying is found.
+ * Apart from offerPeer, only touched by the thread of its loop.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+public class MetaDataFetch {
+
+    static final int PIECE_SIZE = 16384;
+
+    private static final byte MISSING = 0;
+    private static final byte REQUESTED = 1;
+    private static final byte RECEIVED = 2;
+
+    final MetaDataFetcher fetcher;
+    final MetaDataFetchLoop loop;
+    final byte[] infoHash;
+    long deadline;
+
+    private final MetaDataFetcher.Listener listener;
+    private final List<PeerConnection> connections = new ArrayList<>();
+    private final Queue<InetSocketAddress> candidates = new ArrayDeque<>();
+    private final Set<InetSocketAddress> knownPeers = new HashSet<>();
+    private boolean started;
+    private byte[] metaData;
+    private byte[] pieces;
+    private PeerConnection[] sources;
+    private int receivedCount;
+    private final Set<PeerConnection> suspects = new LinkedHashSet<>();
+    private PeerConnection soleSource;
+    private boolean done;
+
+    MetaDataFetch(MetaDataFetcher fetcher, MetaDataFetchLoop loop, byte[] infoHash,
+            MetaDataFetcher.Listener listener) {
+        this.fetcher = fetcher;
+        this.loop = loop;
+        this.infoHash = infoHash;
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a peer to ask if the ones known so far fail; safe to call from any
+     * thread, and ignored once the fetch is over or knows enough peers.
+     */
+    public void offerPeer(String ip, int port) {
+        InetSocketAddress peer = new InetSocketAddress(ip, port);
+        loop.execute(() -> addPeer(peer));
+    }
+
+    void addPeer(InetSocketAddress peer) {
+        if (done || knownPeers.size() >= fetcher.maxPeers || !knownPeers.add(peer)) {
+            return;
+        }
+        candidates.add(peer);
+        if (started) {
+            connectNext();
+        }
+    }
+
+    void start() {
+        started = true;
+        deadline = System.currentTimeMillis() + fetcher.fetchTimeout;
+        connectNext();
+        if (!done && connections.isEmpty()) {
+            finish(null);
+        }
+    }
+
+    /**
+     * Connects to more candidates while there is room, or gives up once the
+     * fetch is out of time rather than dial peers that could not make it.
+     */
+    private void connectNext() {
+        if (done) {
+            return;
+        }
+        if (System.currentTimeMillis() >= deadline) {
+            finish(null);
+            return;
+        }
+        while (connections.size() < fetcher.racePeers && !candidates.isEmpty()) {
+            InetSocketAddress peer = candidates.poll();
+            PeerConnection connection = new PeerConnection(this, peer.getHostString(), peer.getPort());
+            connections.add(connection);
+            connection.connect();
+        }
+    }
+
+    /**
+     * Takes the metadata size a peer announced in its extension handshake.
+     *
+     * @return false if it is out of bounds or disagrees with an earlier one
+     */
+    boolean size(int size) {
+        if (metaData != null) {
+            return size == metaData.length;
+        }
+        if (size <= 0 || size > fetcher.maxMetaDataSize) {
+            return false;
+        }
+        metaData = new byte[size];
+        pieces = new byte[(size + PIECE_SIZE - 1) / PIECE_SIZE];
+        sources = new PeerConnection[pieces.length];
+        return true;
+    }
+
+    /**
+     * @return a piece nobody has been asked for yet, now marked requested;
+     * failing that, one still outstanding that the connection itself has not
+     * asked for; or -1, always so for all but the sole source while there is
+     * one
+     */
+    int nextPiece(PeerConnection connection, BitSet requested) {
+        if (soleSource != null && connection != soleSource) {
+            return -1;
+        }
+        int outstanding = -1;
+        for (int i = 0; i < pieces.length; i++) {
+            if (pieces[i] == MISSING) {
+                pieces[i] = REQUESTED;
+                return i;
+            }
+            if (outstanding < 0 && pieces[i] == REQUESTED && !requested.get(i)) {
+                outstanding = i;
+            }
+        }
+        return outstanding;
+    }
+
+    /**
+     * Makes a piece the connection had requested available to request again,
+     * unless another connection is still waiting for it.
+     */
+    void pieceLost(PeerConnection connection, int piece) {
+        if (done || pieces[piece] != REQUESTED) {
+            return;
+        }
+        for (PeerConnection other : connections) {
+            if (other != connection && other.requested(piece)) {
+                return;
+            }
+        }
+        pieces[piece] = MISSING;
+    }
+
+    /**
+     * @return false if the piece has the wrong length
+     */
+    boolean received(int piece, byte[] data, int offset, int length, PeerConnection source) {
+        if (piece < 0 || piece >= pieces.length) {
+            return false;
+        }
+        int expectedLength = Math.min(PIECE_SIZE, metaData.length - piece * PIECE_SIZE);
+        if (length != expectedLength) {
+            return false;
+        }
+        if (done || pieces[piece] == RECEIVED || (soleSource != null && source != soleSource)) {
+            return true;
+        }
+        System.arraycopy(data, offset, metaData, piece * PIECE_SIZE, length);
+        pieces[piece] = RECEIVED;
+        sources[piece] = source;
+        if (++receivedCount == pieces.length) {
+            complete();
+        }
+        return true;
+    }
+
+    void connectionClosed(PeerConnection connection) {
+        connections.remove(connection);
+        suspects.remove(connection);
+        if (connection == soleSource) {
+            nextSoleSource();
+        }
+        connectNext();
+        if (!done && connections.isEmpty()) {
+            finish(null);
+        } else {
+            // the pieces it had been asked for are up for grabs
+            requestMore();
+        }
+    }
+
+    private void requestMore() {
+        if (done) {
+            return;
+        }
+        for (PeerConnection connection : new ArrayList<>(connections)) {
+            connection.requestMore();
+        }
+    }
+
+    private void complete() {
+        try {
+            if (Arrays.equals(MessageDigest.getInstance("SHA-1").digest(metaData), infoHash)) {
+                finish(parse(metaData));
+                return;
+            }
+        } catch (IOException | NoSuchAlgorithmException ex) {
+            Logger.getLogger(MetaDataFetch.class.getName()).log(Level.FINE, null, ex);
+            finish(null);
+            return;
+        }
+        Logger.getLogger(MetaDataFetch.class.getName()).log(Level.FINE, "metadata hash mismatch");
+        Set<PeerConnection> lastSources = new HashSet<>();
+        for (PeerConnection source : sources) {
+            if (source != null) {
+                lastSources.add(source);
+            }
+        }
+        Arrays.fill(pieces, MISSING);
+        Arrays.fill(sources, null);
+        receivedCount = 0;
+        if (lastSources.size() == 1) {
+            // closing it moves on to the next suspect, if any
+            lastSources.iterator().next().close("bad metadata");
+        } else {
+            // any of them may have lied, so start over taking every piece
+            // from one of them until the liar is found
+            for (PeerConnection connection : connections) {
+                if (lastSources.contains(connection)) {
+                    suspects.add(connection);
+                }
+            }
+            nextSoleSource();
+        }
+        if (!done) {
+            requestMore();
+        }
+    }
+
+    private void nextSoleSource() {
+        Iterator<PeerConnection> iterator = suspects.iterator();
+        if (iterator.hasNext()) {
+            soleSource = iterator.next();
+            iterator.remove();
+        } else {
+            soleSource = null;
+        }
+    }
+
+    private void finish(MetaData result) {
+        done = true;
+        for (PeerConnection connection : new ArrayList<>(connections)) {
+            connection.close(null);
+        }
+        try {
+            if (result != null) {
+                listener.fetched(infoHash, result);
+            } else {
+                listener.failed(infoHash);
+            }
+        } catch (Exception ex) {
+            Logger.getLogger(MetaDataFetch.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private static MetaData parse(byte[] info) throws IOException {
+        Map<String, BEValue> dict = new BencodeDecoder(info).decode().getMap();
+        MetaData result = new MetaData();
+        result.info = info;
+        BEValue name = dict.containsKey("name.utf-8") ? dict.get("name.utf-8") : dict.get("name");
+        if (name != null) {
+            result.name = new String(name.getBytes(), StandardCharsets.UTF_8);
+        }
+        if (dict.containsKey("length")) {
+            result.length = dict.get("length").getLong();
+        } else if (dict.containsKey("files")) {
+            for (BEValue file : dict.get("files").getList()) {
+                BEValue length = file.getMap().get("length");
+                if (length != null) {
+                    result.length += length.getLong();
+                }
+            }
+        }
+        return result;
+    }
+}
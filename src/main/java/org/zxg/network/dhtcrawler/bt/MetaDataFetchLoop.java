@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler.bt;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Event loop owning a selector and the peer connections registered with it.
+ * Everything about a connection, and about the fetch it serves, happens on
+ * this thread; other threads hand work over through execute.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+class MetaDataFetchLoop extends Thread {
+
+    private static final long SELECT_TIMEOUT = 100;
+
+    final Selector selector;
+    final Set<PeerConnection> connections = new LinkedHashSet<>();
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    MetaDataFetchLoop(String name) throws IOException {
+        super(name);
+        setDaemon(true);
+        selector = Selector.open();
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        List<PeerConnection> expired = new ArrayList<>();
+        while (running) {
+            try {
+                selector.select(SELECT_TIMEOUT);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ((PeerConnection) key.attachment()).handle(key);
+                }
+                long currentTime = System.currentTimeMillis();
+                for (PeerConnection connection : connections) {
+                    if (currentTime >= connection.deadline) {
+                        expired.add(connection);
+                    }
+                }
+                for (PeerConnection connection : expired) {
+                    connection.close("timed out");
+                }
+                expired.clear();
+            } catch (Throwable ex) {
+                // a task or a callback failing must not stop the fetches
+                // left on this loop
+                Logger.getLogger(MetaDataFetchLoop.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        for (PeerConnection connection : new ArrayList<>(connections)) {
+            connection.close("stopped");
+        }
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            Logger.getLogger(MetaDataFetchLoop.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+}
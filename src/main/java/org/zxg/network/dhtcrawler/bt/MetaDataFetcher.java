@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler.bt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.zxg.network.dhtcrawler.MetaData;
+import org.zxg.network.dhtcrawler.Util;
+
+/**
+ * Fetches torrent metadata from peers with the ut_metadata extension (BEP 9
+ * over BEP 10). Connections are non-blocking and spread over a few event
+ * loop threads, each driving any number of them with one selector.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+public class MetaDataFetcher {
+
+    /**
+     * Called on a fetcher thread, so it must not block.
+     */
+    public interface Listener {
+
+        void fetched(byte[] infoHash, MetaData metaData);
+
+        void failed(byte[] infoHash);
+    }
+
+    final long connectTimeout;
+    final long fetchTimeout;
+    final int maxMetaDataSize;
+    final int maxPeers;
+    final int racePeers;
+    final byte[] peerId;
+
+    private final MetaDataFetchLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * @param connectTimeout milliseconds to connect and finish the handshakes
+     * @param fetchTimeout milliseconds for a whole fetch
+     * @param maxPeers peers a fetch tries at most
+     * @param racePeers peers a fetch is connected to at once
+     */
+    public MetaDataFetcher(int threads, long connectTimeout, long fetchTimeout, int maxMetaDataSize,
+            int maxPeers, int racePeers) {
+        this.connectTimeout = connectTimeout;
+        this.fetchTimeout = fetchTimeout;
+        this.maxMetaDataSize = maxMetaDataSize;
+        this.maxPeers = maxPeers;
+        this.racePeers = Math.max(1, racePeers);
+        this.peerId = Util.entropy(20);
+        System.arraycopy("-DC0001-".getBytes(), 0, peerId, 0, 8);
+        this.loops = new MetaDataFetchLoop[Math.max(1, threads)];
+    }
+
+    public void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new MetaDataFetchLoop("metadata-fetcher-" + i);
+            loops[i].start();
+        }
+    }
+
+    public void stop() {
+        for (MetaDataFetchLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Starts fetching the metadata of the infohash from the peers; exactly
+     * one of the listener's methods is called once it is over.
+     *
+     * @return the fetch, to offer it more peers while it runs
+     */
+    public MetaDataFetch fetch(byte[] infoHash, List<InetSocketAddress> peers, Listener listener) {
+        MetaDataFetchLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        MetaDataFetch fetch = new MetaDataFetch(this, loop, infoHash, listener);
+        loop.execute(() -> {
+            for (InetSocketAddress peer : peers) {
+                fetch.addPeer(peer);
+            }
+            fetch.start();
+        });
+        return fetch;
+    }
+}
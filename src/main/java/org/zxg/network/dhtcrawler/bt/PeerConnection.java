@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler.bt;
+
+import com.turn.ttorrent.bcodec.BEValue;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A non-blocking connection to one peer: the BitTorrent and extension
+ * handshakes, then ut_metadata requests for whatever pieces its fetch hands
+ * out. Only touched by the thread of its loop.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+class PeerConnection {
+
+    private static final byte[] PROTOCOL = "BitTorrent protocol".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int HANDSHAKE_LENGTH = 68;
+    private static final int EXTENDED = 20;
+    /**
+     * The id we ask peers to send ut_metadata messages to us with.
+     */
+    private static final int UT_METADATA = 1;
+    private static final byte[] EXTENDED_HANDSHAKE = "d1:md11:ut_metadatai1eee".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int MAX_MESSAGE_LENGTH = 1 << 20;
+    /**
+     * Piece requests kept in flight.
+     */
+    private static final int REQUEST_WINDOW = 8;
+
+    final MetaDataFetch fetch;
+    final String ip;
+    final int port;
+    long deadline;
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer in = ByteBuffer.allocate(32 * 1024);
+    private final Queue<ByteBuffer> out = new ArrayDeque<>();
+    private final BitSet requested = new BitSet();
+    private boolean handshaken;
+    /**
+     * The id the peer wants ut_metadata messages sent with, once known.
+     */
+    private int metaDataId = -1;
+    private boolean closed;
+
+    PeerConnection(MetaDataFetch fetch, String ip, int port) {
+        this.fetch = fetch;
+        this.ip = ip;
+        this.port = port;
+    }
+
+    void connect() {
+        deadline = Math.min(System.currentTimeMillis() + fetch.fetcher.connectTimeout, fetch.deadline);
+        fetch.loop.connections.add(this);
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            boolean connected = channel.connect(new InetSocketAddress(ip, port));
+            key = channel.register(fetch.loop.selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+            if (connected) {
+                connected();
+            }
+        } catch (IOException | RuntimeException ex) {
+            close(ex.toString());
+        }
+    }
+
+    void handle(SelectionKey selectedKey) {
+        try {
+            if (selectedKey.isConnectable()) {
+                if (!channel.finishConnect()) {
+                    return;
+                }
+                connected();
+            }
+            if (!closed && selectedKey.isValid() && selectedKey.isWritable()) {
+                flush();
+            }
+            if (!closed && selectedKey.isValid() && selectedKey.isReadable()) {
+                read();
+            }
+        } catch (Throwable ex) {
+            // whatever the peer sent, it only takes this connection down
+            close(ex.toString());
+        }
+    }
+
+    private void connected() throws IOException {
+        ByteBuffer handshake = ByteBuffer.allocate(HANDSHAKE_LENGTH);
+        handshake.put((byte) PROTOCOL.length).put(PROTOCOL);
+        // reserved bytes, with the extension protocol bit
+        handshake.put(new byte[]{0, 0, 0, 0, 0, 0x10, 0, 0});
+        handshake.put(fetch.infoHash).put(fetch.fetcher.peerId);
+        handshake.flip();
+        out.add(handshake);
+        out.add(extended(0, EXTENDED_HANDSHAKE));
+        key.interestOps(SelectionKey.OP_READ);
+        flush();
+    }
+
+    private void read() throws IOException {
+        if (channel.read(in) < 0) {
+            throw new IOException("closed by peer");
+        }
+        in.flip();
+        int needed = 0;
+        while (!closed) {
+            if (!handshaken) {
+                if (in.remaining() < HANDSHAKE_LENGTH) {
+                    needed = HANDSHAKE_LENGTH;
+                    break;
+                }
+                checkHandshake(in.position());
+                in.position(in.position() + HANDSHAKE_LENGTH);
+                handshaken = true;
+                deadline = fetch.deadline;
+                continue;
+            }
+            if (in.remaining() < 4) {
+                break;
+            }
+            int length = in.getInt(in.position());
+            if (length < 0 || length > MAX_MESSAGE_LENGTH) {
+                throw new IOException("message of " + length + " bytes");
+            }
+            if (in.remaining() < 4 + length) {
+                needed = 4 + length;
+                break;
+            }
+            int offset = in.position() + 4;
+            in.position(offset + length);
+            if (length > 1 && in.get(offset) == EXTENDED) {
+                extended(in.array(), offset + 1, length - 1);
+            }
+        }
+        in.compact();
+        if (needed > in.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(needed);
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+        }
+    }
+
+    private void checkHandshake(int offset) throws IOException {
+        if (in.get(offset) != PROTOCOL.length) {
+            throw new IOException("not a BitTorrent handshake");
+        }
+        for (int i = 0; i < PROTOCOL.length; i++) {
+            if (in.get(offset + 1 + i) != PROTOCOL[i]) {
+                throw new IOException("not a BitTorrent handshake");
+            }
+        }
+        if ((in.get(offset + 25) & 0x10) == 0) {
+            throw new IOException("no extension protocol");
+        }
+        for (int i = 0; i < 20; i++) {
+            if (in.get(offset + 28 + i) != fetch.infoHash[i]) {
+                throw new IOException("infohash mismatch");
+            }
+        }
+    }
+
+    private void extended(byte[] data, int offset, int length) throws IOException {
+        int extendedId = data[offset] & 0xff;
+        BencodeDecoder payload = new BencodeDecoder(data, offset + 1, length - 1);
+        Map<String, BEValue> dict = payload.decode().getMap();
+        if (extendedId == 0) {
+            BEValue m = dict.get("m");
+            BEValue utMetaData = m == null ? null : m.getMap().get("ut_metadata");
+            BEValue size = dict.get("metadata_size");
+            if (utMetaData == null || utMetaData.getInt() <= 0 || size == null) {
+                throw new IOException("no ut_metadata");
+            }
+            if (!fetch.size(size.getInt())) {
+                throw new IOException("bad metadata size " + size.getInt());
+            }
+            metaDataId = utMetaData.getInt();
+            requestPieces();
+        } else if (extendedId == UT_METADATA && metaDataId > 0) {
+            BEValue msgType = dict.get("msg_type");
+            BEValue piece = dict.get("piece");
+            if (msgType == null || piece == null) {
+                throw new IOException("bad ut_metadata message");
+            }
+            switch (msgType.getInt()) {
+                case 1: {
+                    int pieceIndex = piece.getInt();
+                    if (pieceIndex < 0 || !requested.get(pieceIndex)) {
+                        break;
+                    }
+                    requested.clear(pieceIndex);
+                    int dataLength = offset + length - payload.position();
+                    if (!fetch.received(pieceIndex, data, payload.position(), dataLength, this)) {
+                        throw new IOException("bad piece " + pieceIndex);
+                    }
+                    if (!closed) {
+                        requestPieces();
+                    }
+                }
+                break;
+                case 2:
+                    throw new IOException("rejected piece " + piece.getInt());
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Fills the request window again, if the handshakes are done.
+     */
+    void requestMore() {
+        if (closed || metaDataId < 0) {
+            return;
+        }
+        try {
+            requestPieces();
+        } catch (IOException ex) {
+            close(ex.toString());
+        }
+    }
+
+    private void requestPieces() throws IOException {
+        int piece;
+        while (requested.cardinality() < REQUEST_WINDOW && (piece = fetch.nextPiece(this, requested)) >= 0) {
+            requested.set(piece);
+            out.add(extended(metaDataId, ("d8:msg_typei0e5:piecei" + piece + "ee")
+                    .getBytes(StandardCharsets.ISO_8859_1)));
+        }
+        flush();
+    }
+
+    private static ByteBuffer extended(int extendedId, byte[] payload) {
+        ByteBuffer message = ByteBuffer.allocate(6 + payload.length);
+        message.putInt(2 + payload.length).put((byte) EXTENDED).put((byte) extendedId).put(payload);
+        message.flip();
+        return message;
+    }
+
+    private void flush() throws IOException {
+        while (!out.isEmpty()) {
+            ByteBuffer message = out.peek();
+            channel.write(message);
+            if (message.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            out.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    boolean requested(int piece) {
+        return requested.get(piece);
+    }
+
+    /**
+     * Closes the connection and hands its outstanding pieces back to the
+     * fetch; does nothing the second time.
+     *
+     * @param reason logged if not null
+     */
+    void close(String reason) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (reason != null) {
+            Logger.getLogger(PeerConnection.class.getName()).log(Level.FINEST, "{0}:{1} {2}",
+                    new Object[]{ip, port, reason});
+        }
+        fetch.loop.connections.remove(this);
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Logger.getLogger(PeerConnection.class.getName()).log(Level.FINEST, null, ex);
+            }
+        }
+        for (int piece = requested.nextSetBit(0); piece >= 0; piece = requested.nextSetBit(piece + 1)) {
+            fetch.pieceLost(this, piece);
+        }
+        requested.clear();
+        fetch.connectionClosed(this);
+    }
+}
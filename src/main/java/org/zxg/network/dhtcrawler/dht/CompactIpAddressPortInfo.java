@@ -47,6 +47,12 @@ public class CompactIpAddressPortInfo {
         this.port = ByteBuffer.wrap(portBytes).getInt();
     }
 
+    public CompactIpAddressPortInfo(ByteBuffer buffer, int offset) {
+        this.ip = (buffer.get(offset) & 0xff) + "." + (buffer.get(offset + 1) & 0xff)
+                + "." + (buffer.get(offset + 2) & 0xff) + "." + (buffer.get(offset + 3) & 0xff);
+        this.port = ((buffer.get(offset + 4) & 0xff) << 8) | (buffer.get(offset + 5) & 0xff);
+    }
+
     public byte[] toBytes() throws UnknownHostException {
         byte[] ipBytes = InetAddress.getByName(this.ip).getAddress();
         byte[] portBytes = new byte[4];
@@ -17,6 +17,7 @@
 package org.zxg.network.dhtcrawler.dht;
 
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -43,6 +44,16 @@ public class CompactNodeInfo {
                 offset + 20, 6);
     }
 
+    public CompactNodeInfo(ByteBuffer buffer, int offset) {
+        this.nodeId = new byte[20];
+        for (int i = 0; i < 20; i++) {
+            this.nodeId[i] = buffer.get(offset + i);
+        }
+
+        this.compactIpAddressPortInfo = new CompactIpAddressPortInfo(buffer,
+                offset + 20);
+    }
+
     public byte[] toBytes() throws UnknownHostException {
         byte[] bytes = new byte[26];
         System.arraycopy(this.nodeId, 0, bytes, 0, 20);
@@ -24,7 +24,10 @@ import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.zxg.network.dhtcrawler.Addr;
+import org.zxg.network.dhtcrawler.UdpMsg;
 import org.zxg.network.dhtcrawler.krpc.Krpc;
+import org.zxg.network.dhtcrawler.krpc.KrpcDecodeException;
+import org.zxg.network.dhtcrawler.krpc.KrpcDecoder;
 import org.zxg.network.dhtcrawler.krpc.KrpcError;
 import org.zxg.network.dhtcrawler.krpc.KrpcMsg;
 import org.zxg.network.dhtcrawler.krpc.KrpcMsgTypeException;
@@ -37,49 +40,62 @@ import org.zxg.network.dhtcrawler.krpc.KrpcReq;
  */
 public abstract class Dht extends Krpc {
 
-    protected abstract void setDhtReqMethod(Addr addr, byte[] tid, String method);
+    private final ThreadLocal<DhtReplyEncoder> replyEncoders = ThreadLocal.withInitial(DhtReplyEncoder::new);
 
-    protected abstract String removeDhtReqMethod(Addr addr, byte[] tid);
+    /**
+     * Records an outgoing request. Called again with the same request object
+     * when it is retried.
+     *
+     * @return the transaction id to send the request with
+     */
+    protected abstract byte[] addDhtReqMethod(DhtReq req, String method);
+
+    /**
+     * @return the request answered by the transaction id, or null if no such
+     * request is outstanding
+     */
+    protected abstract DhtReq removeDhtReq(Addr addr, byte[] tid);
 
     protected final void sendDht(DhtPingReq req) throws IOException {
         KrpcReq krpcReq = new KrpcReq();
         krpcReq.addr = req.addr;
         krpcReq.method = "ping";
+        krpcReq.tId = addDhtReqMethod(req, krpcReq.method);
         krpcReq.arguments = new HashMap<>();
         krpcReq.arguments.put("id", new BEValue(req.nodeId));
         sendKrpc(krpcReq);
         req.tId = krpcReq.tId;
-        setDhtReqMethod(req.addr, req.tId, "ping");
     }
 
     protected final void sendDht(DhtFindNodeReq req) throws IOException {
         KrpcReq krpcReq = new KrpcReq();
         krpcReq.addr = req.addr;
         krpcReq.method = "find_node";
+        krpcReq.tId = addDhtReqMethod(req, krpcReq.method);
         krpcReq.arguments = new HashMap<>();
         krpcReq.arguments.put("id", new BEValue(req.nodeId));
         krpcReq.arguments.put("target", new BEValue(req.targetNodeId));
         sendKrpc(krpcReq);
         req.tId = krpcReq.tId;
-        setDhtReqMethod(req.addr, req.tId, "find_node");
     }
 
     protected final void sendDht(DhtGetPeersReq req) throws IOException {
         KrpcReq krpcReq = new KrpcReq();
         krpcReq.addr = req.addr;
         krpcReq.method = "get_peers";
+        krpcReq.tId = addDhtReqMethod(req, krpcReq.method);
         krpcReq.arguments = new HashMap<>();
         krpcReq.arguments.put("id", new BEValue(req.nodeId));
         krpcReq.arguments.put("info_hash", new BEValue(req.infoHash));
         sendKrpc(krpcReq);
         req.tId = krpcReq.tId;
-        setDhtReqMethod(req.addr, req.tId, "get_peers");
     }
 
     protected final void sendDht(DhtAnnouncePeerReq req) throws IOException {
         KrpcReq krpcReq = new KrpcReq();
         krpcReq.addr = req.addr;
         krpcReq.method = "announce_peer";
+        krpcReq.tId = addDhtReqMethod(req, krpcReq.method);
         krpcReq.arguments = new HashMap<>();
         krpcReq.arguments.put("id", new BEValue(req.nodeId));
         krpcReq.arguments.put("info_hash", new BEValue(req.infoHash));
@@ -87,64 +103,85 @@ public abstract class Dht extends Krpc {
         krpcReq.arguments.put("token", new BEValue(req.token));
         sendKrpc(krpcReq);
         req.tId = krpcReq.tId;
-        setDhtReqMethod(req.addr, req.tId, "announce_peer");
+    }
+
+    protected final void sendDht(DhtSampleInfohashesReq req) throws IOException {
+        KrpcReq krpcReq = new KrpcReq();
+        krpcReq.addr = req.addr;
+        krpcReq.method = "sample_infohashes";
+        krpcReq.tId = addDhtReqMethod(req, krpcReq.method);
+        krpcReq.arguments = new HashMap<>();
+        krpcReq.arguments.put("id", new BEValue(req.nodeId));
+        krpcReq.arguments.put("target", new BEValue(req.targetNodeId));
+        sendKrpc(krpcReq);
+        req.tId = krpcReq.tId;
     }
 
     protected final void sendDht(DhtPingReply reply) throws IOException {
-        KrpcReply krpcReply = new KrpcReply();
-        krpcReply.addr = reply.addr;
-        krpcReply.tId = reply.tId;
-        krpcReply.replies = new HashMap<>();
-        krpcReply.replies.put("id", new BEValue(reply.nodeId));
-        sendKrpc(krpcReply);
+        sendPingReply(reply.addr, reply.tId, reply.nodeId);
     }
 
     protected final void sendDht(DhtFindNodeReply reply) throws IOException {
-        KrpcReply krpcReply = new KrpcReply();
-        krpcReply.addr = reply.addr;
-        krpcReply.tId = reply.tId;
-        krpcReply.replies = new HashMap<>();
-        krpcReply.replies.put("id", new BEValue(reply.nodeId));
-        byte[] nodesBytes = new byte[reply.nodes.size() * 26];
-        for (int i = 0; i < reply.nodes.size(); i++) {
-            System.arraycopy(reply.nodes.get(i).toBytes(), 0, nodesBytes,
-                    i * 26, 26);
-        }
-        krpcReply.replies.put("nodes", new BEValue(nodesBytes));
-        sendKrpc(krpcReply);
+        byte[] nodesBytes = toBytes(reply.nodes);
+        sendFindNodeReply(reply.addr, reply.tId, reply.nodeId, nodesBytes,
+                nodesBytes.length);
     }
 
     protected final void sendDht(DhtGetPeersReply reply) throws IOException {
-        KrpcReply krpcReply = new KrpcReply();
-        krpcReply.addr = reply.addr;
-        krpcReply.tId = reply.tId;
-        krpcReply.replies = new HashMap<>();
-        krpcReply.replies.put("id", new BEValue(reply.nodeId));
-        krpcReply.replies.put("token", new BEValue(reply.token));
         if (reply.peers != null) {
+            KrpcReply krpcReply = new KrpcReply();
+            krpcReply.addr = reply.addr;
+            krpcReply.tId = reply.tId;
+            krpcReply.replies = new HashMap<>();
+            krpcReply.replies.put("id", new BEValue(reply.nodeId));
+            krpcReply.replies.put("token", new BEValue(reply.token));
             List<BEValue> values = new LinkedList<>();
             for (CompactIpAddressPortInfo info : reply.peers) {
                 values.add(new BEValue(info.toBytes()));
             }
             krpcReply.replies.put("values", new BEValue(values));
+            sendKrpc(krpcReply);
         } else {
-            byte[] nodesBytes = new byte[reply.nodes.size() * 26];
-            for (int i = 0; i < reply.nodes.size(); i++) {
-                System.arraycopy(reply.nodes.get(i).toBytes(), 0, nodesBytes,
-                        i * 26, 26);
-            }
-            krpcReply.replies.put("nodes", new BEValue(nodesBytes));
+            byte[] nodesBytes = toBytes(reply.nodes);
+            sendGetPeersReply(reply.addr, reply.tId, reply.nodeId, reply.token,
+                    nodesBytes, nodesBytes.length);
         }
-        sendKrpc(krpcReply);
     }
 
     protected final void sendDht(DhtAnnouncePeerReply reply) throws IOException {
-        KrpcReply krpcReply = new KrpcReply();
-        krpcReply.addr = reply.addr;
-        krpcReply.tId = reply.tId;
-        krpcReply.replies = new HashMap<>();
-        krpcReply.replies.put("id", new BEValue(reply.nodeId));
-        sendKrpc(krpcReply);
+        sendAnnouncePeerReply(reply.addr, reply.tId, reply.nodeId);
+    }
+
+    protected final void sendPingReply(Addr addr, byte[] tId, byte[] nodeId)
+            throws IOException {
+        sendUdp(addr, replyEncoders.get().pingReply(tId, nodeId));
+    }
+
+    protected final void sendFindNodeReply(Addr addr, byte[] tId, byte[] nodeId,
+            byte[] compactNodes, int compactNodesLength) throws IOException {
+        sendUdp(addr, replyEncoders.get().findNodeReply(tId, nodeId,
+                compactNodes, 0, compactNodesLength));
+    }
+
+    protected final void sendGetPeersReply(Addr addr, byte[] tId, byte[] nodeId,
+            byte[] token, byte[] compactNodes, int compactNodesLength)
+            throws IOException {
+        sendUdp(addr, replyEncoders.get().getPeersReply(tId, nodeId, token,
+                compactNodes, 0, compactNodesLength));
+    }
+
+    protected final void sendAnnouncePeerReply(Addr addr, byte[] tId, byte[] nodeId)
+            throws IOException {
+        sendUdp(addr, replyEncoders.get().announcePeerReply(tId, nodeId));
+    }
+
+    private static byte[] toBytes(List<CompactNodeInfo> nodes) throws IOException {
+        byte[] nodesBytes = new byte[nodes.size() * 26];
+        for (int i = 0; i < nodes.size(); i++) {
+            System.arraycopy(nodes.get(i).toBytes(), 0, nodesBytes,
+                    i * 26, 26);
+        }
+        return nodesBytes;
     }
 
     protected final void sendDht(DhtGeneralError err) throws IOException {
@@ -184,8 +221,35 @@ public abstract class Dht extends Krpc {
     }
 
     protected final DhtMsg recvDht() throws IOException, KrpcMsgTypeException,
-            DhtReqMethodException, DhtReplyTypeException, DhtErrorNumException {
-        KrpcMsg krpcMsg = recvKrpc();
+            KrpcDecodeException, DhtReqMethodException, DhtReplyTypeException,
+            DhtErrorNumException, DhtArgumentException {
+        DhtMsg dhtMsg;
+        do {
+            dhtMsg = decodeDht(recvUdp());
+        } while (dhtMsg == null);
+        return dhtMsg;
+    }
+
+    /**
+     * Decodes and releases a received datagram.
+     *
+     * @return null if the datagram was dropped by the filter
+     */
+    protected final DhtMsg decodeDht(UdpMsg udpMsg) throws KrpcMsgTypeException,
+            KrpcDecodeException, DhtReqMethodException, DhtReplyTypeException,
+            DhtErrorNumException, DhtArgumentException {
+        try {
+            KrpcMsg krpcMsg = decodeKrpc(udpMsg);
+            return krpcMsg == null ? null : toDhtMsg(krpcMsg);
+        } finally {
+            udpMsg.release();
+        }
+    }
+
+    private DhtMsg toDhtMsg(KrpcMsg krpcMsg) throws KrpcMsgTypeException,
+            DhtReqMethodException, DhtReplyTypeException, DhtErrorNumException,
+            DhtArgumentException {
+        KrpcDecoder decoder = krpcMsg.decoder;
         DhtMsg dhtMsg;
         if (krpcMsg instanceof KrpcReq) {
             KrpcReq krpcReq = (KrpcReq) krpcMsg;
@@ -193,36 +257,43 @@ public abstract class Dht extends Krpc {
             switch (krpcReq.method) {
                 case "ping": {
                     DhtPingReq dhtPingReq = new DhtPingReq();
-                    dhtPingReq.nodeId = krpcReq.arguments.get("id").getBytes();
+                    dhtPingReq.nodeId = nodeId(decoder);
                     dhtReq = dhtPingReq;
                 }
                 break;
                 case "find_node": {
                     DhtFindNodeReq dhtFindNodeReq = new DhtFindNodeReq();
-                    dhtFindNodeReq.nodeId = krpcReq.arguments.get("id").getBytes();
-                    dhtFindNodeReq.targetNodeId = krpcReq.arguments.get("target")
-                            .getBytes();
+                    dhtFindNodeReq.nodeId = nodeId(decoder);
+                    dhtFindNodeReq.targetNodeId = id(decoder, decoder.targetOffset,
+                            decoder.targetLength, "target");
                     dhtReq = dhtFindNodeReq;
                 }
                 break;
                 case "get_peers": {
                     DhtGetPeersReq dhtGetPeersReq = new DhtGetPeersReq();
-                    dhtGetPeersReq.nodeId = krpcReq.arguments.get("id").getBytes();
-                    dhtGetPeersReq.infoHash = krpcReq.arguments.get("info_hash")
-                            .getBytes();
+                    dhtGetPeersReq.nodeId = nodeId(decoder);
+                    dhtGetPeersReq.infoHash = id(decoder, decoder.infoHashOffset,
+                            decoder.infoHashLength, "info_hash");
                     dhtReq = dhtGetPeersReq;
                 }
                 break;
                 case "announce_peer": {
                     DhtAnnouncePeerReq dhtAnnouncePeerReq = new DhtAnnouncePeerReq();
-                    dhtAnnouncePeerReq.nodeId = krpcReq.arguments.get("id")
-                            .getBytes();
-                    dhtAnnouncePeerReq.infoHash = krpcReq.arguments
-                            .get("info_hash").getBytes();
-                    dhtAnnouncePeerReq.port = krpcReq.arguments.get("port")
-                            .getInt();
-                    dhtAnnouncePeerReq.token = krpcReq.arguments.get("token")
-                            .getBytes();
+                    dhtAnnouncePeerReq.nodeId = nodeId(decoder);
+                    dhtAnnouncePeerReq.infoHash = id(decoder, decoder.infoHashOffset,
+                            decoder.infoHashLength, "info_hash");
+                    dhtAnnouncePeerReq.impliedPort = decoder.impliedPort != 0;
+                    // the port is ignored, and often 0, when it is implied
+                    if (!decoder.hasPort || decoder.port > 65535
+                            || decoder.port < (dhtAnnouncePeerReq.impliedPort ? 0 : 1)) {
+                        throw new DhtArgumentException("port");
+                    }
+                    dhtAnnouncePeerReq.port = (int) decoder.port;
+                    if (decoder.tokenOffset < 0) {
+                        throw new DhtArgumentException("token");
+                    }
+                    dhtAnnouncePeerReq.token = decoder.bytes(decoder.tokenOffset,
+                            decoder.tokenLength);
                     dhtReq = dhtAnnouncePeerReq;
                 }
                 break;
@@ -233,26 +304,23 @@ public abstract class Dht extends Krpc {
         } else if (krpcMsg instanceof KrpcReply) {
             KrpcReply krpcReply = (KrpcReply) krpcMsg;
             DhtReply dhtReply;
-            String dhtReqMethod = removeDhtReqMethod(krpcReply.addr,
-                    krpcReply.tId);
-            switch (dhtReqMethod) {
+            DhtReq dhtReq = removeDhtReq(krpcReply.addr, krpcReply.tId);
+            if (dhtReq == null) {
+                throw new DhtReplyTypeException();
+            }
+            switch (method(dhtReq)) {
                 case "ping": {
                     DhtPingReply dhtPingReply = new DhtPingReply();
-                    dhtPingReply.nodeId = krpcReply.replies.get("id").getBytes();
+                    dhtPingReply.nodeId = nodeId(decoder);
                     dhtReply = dhtPingReply;
                 }
                 break;
                 case "find_node": {
                     DhtFindNodeReply dhtFindNodeReply = new DhtFindNodeReply();
-                    dhtFindNodeReply.nodeId = krpcReply.replies.get("id")
-                            .getBytes();
+                    dhtFindNodeReply.nodeId = nodeId(decoder);
                     dhtFindNodeReply.nodes = new LinkedList<>();
-                    if (krpcReply.replies.containsKey("nodes")) {
-                        byte[] nodesBytes = krpcReply.replies.get("nodes").getBytes();
-                        for (int i = 0; i * 26 < nodesBytes.length; i++) {
-                            dhtFindNodeReply.nodes.add(new CompactNodeInfo(nodesBytes,
-                                    i * 26, 26));
-                        }
+                    if (decoder.nodesOffset >= 0) {
+                        addNodes(decoder, dhtFindNodeReply.nodes);
                     } else {
                         Logger.getLogger(Dht.class.getName()).log(Level.FINEST, "find_node reply doesn't contain nodes");
                     }
@@ -261,42 +329,62 @@ public abstract class Dht extends Krpc {
                 break;
                 case "get_peers": {
                     DhtGetPeersReply dhtGetPeersReply = new DhtGetPeersReply();
-                    dhtGetPeersReply.nodeId = krpcReply.replies.get("id")
-                            .getBytes();
-                    dhtGetPeersReply.token = krpcReply.replies.get("token")
-                            .getBytes();
-                    if (krpcReply.replies.get("values") != null) {
+                    dhtGetPeersReply.nodeId = nodeId(decoder);
+                    if (decoder.tokenOffset < 0) {
+                        throw new DhtArgumentException("token");
+                    }
+                    dhtGetPeersReply.token = decoder.bytes(decoder.tokenOffset,
+                            decoder.tokenLength);
+                    if (decoder.hasValues) {
                         dhtGetPeersReply.peers = new LinkedList<>();
-                        List<BEValue> values = krpcReply.replies.get("values")
-                                .getList();
-                        for (BEValue value : values) {
-                            dhtGetPeersReply.peers
-                                    .add(new CompactIpAddressPortInfo(value
-                                                    .getBytes()));
+                        for (int i = 0; i < decoder.valuesCount; i++) {
+                            if (decoder.valueLengths[i] == 6) {
+                                dhtGetPeersReply.peers.add(new CompactIpAddressPortInfo(
+                                        decoder.buffer, decoder.valueOffsets[i]));
+                            }
                         }
                     } else {
-                        dhtGetPeersReply.nodes = new LinkedList<>();
-                        byte[] nodesBytes = krpcReply.replies.get("nodes")
-                                .getBytes();
-                        for (int i = 0; i * 26 < nodesBytes.length; i++) {
-                            dhtGetPeersReply.nodes.add(new CompactNodeInfo(
-                                    nodesBytes, i * 26, 26));
+                        if (decoder.nodesOffset < 0) {
+                            throw new DhtArgumentException("nodes");
                         }
+                        dhtGetPeersReply.nodes = new LinkedList<>();
+                        addNodes(decoder, dhtGetPeersReply.nodes);
                     }
                     dhtReply = dhtGetPeersReply;
                 }
                 break;
                 case "announce_peer": {
                     DhtAnnouncePeerReply dhtAnnouncePeerReply = new DhtAnnouncePeerReply();
-                    dhtAnnouncePeerReply.nodeId = krpcReply.replies.get("id")
-                            .getBytes();
+                    dhtAnnouncePeerReply.nodeId = nodeId(decoder);
                     dhtReply = dhtAnnouncePeerReply;
                 }
                 break;
+                case "sample_infohashes": {
+                    DhtSampleInfohashesReply dhtSampleInfohashesReply = new DhtSampleInfohashesReply();
+                    dhtSampleInfohashesReply.nodeId = nodeId(decoder);
+                    if (decoder.samplesOffset < 0) {
+                        throw new DhtArgumentException("samples");
+                    }
+                    dhtSampleInfohashesReply.interval = (int) Math.max(0,
+                            Math.min(decoder.interval, Integer.MAX_VALUE));
+                    dhtSampleInfohashesReply.num = (int) Math.max(0,
+                            Math.min(decoder.num, Integer.MAX_VALUE));
+                    dhtSampleInfohashesReply.samples = new LinkedList<>();
+                    for (int i = 0; i + 20 <= decoder.samplesLength; i += 20) {
+                        dhtSampleInfohashesReply.samples.add(decoder.bytes(decoder.samplesOffset + i, 20));
+                    }
+                    dhtSampleInfohashesReply.nodes = new LinkedList<>();
+                    if (decoder.nodesOffset >= 0) {
+                        addNodes(decoder, dhtSampleInfohashesReply.nodes);
+                    }
+                    dhtReply = dhtSampleInfohashesReply;
+                }
+                break;
                 default: {
                     throw new DhtReplyTypeException();
                 }
             }
+            dhtReply.req = dhtReq;
             dhtMsg = dhtReply;
         } else if (krpcMsg instanceof KrpcError) {
             KrpcError krpcError = (KrpcError) krpcMsg;
@@ -334,4 +422,38 @@ public abstract class Dht extends Krpc {
         dhtMsg.tId = krpcMsg.tId;
         return dhtMsg;
     }
+
+    private static String method(DhtReq req) {
+        if (req instanceof DhtPingReq) {
+            return "ping";
+        } else if (req instanceof DhtFindNodeReq) {
+            return "find_node";
+        } else if (req instanceof DhtGetPeersReq) {
+            return "get_peers";
+        } else if (req instanceof DhtAnnouncePeerReq) {
+            return "announce_peer";
+        } else if (req instanceof DhtSampleInfohashesReq) {
+            return "sample_infohashes";
+        }
+        return "";
+    }
+
+    private static byte[] nodeId(KrpcDecoder decoder) throws DhtArgumentException {
+        return id(decoder, decoder.idOffset, decoder.idLength, "id");
+    }
+
+    private static byte[] id(KrpcDecoder decoder, int offset, int length, String name)
+            throws DhtArgumentException {
+        if (length != 20) {
+            throw new DhtArgumentException(name);
+        }
+        return decoder.bytes(offset, length);
+    }
+
+    private static void addNodes(KrpcDecoder decoder, List<CompactNodeInfo> nodes) {
+        int end = decoder.nodesOffset + decoder.nodesLength - 25;
+        for (int offset = decoder.nodesOffset; offset < end; offset += 26) {
+            nodes.add(new CompactNodeInfo(decoder.buffer, offset));
+        }
+    }
 }
@@ -24,5 +24,9 @@ public class DhtAnnouncePeerReq extends DhtReq {
 
     public byte[] infoHash;
     public int port;
+    /**
+     * The peer listens on the source port of the request rather than port.
+     */
+    public boolean impliedPort;
     public byte[] token;
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2014 Xianguang Zhou <xianguang.zhou@outlook.com>
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
  *
  * This program is free software: you can redistribute it and/or modify
  * it under the terms of the GNU Affero General Public License as published by
@@ -14,22 +14,16 @@
  * You should have received a copy of the GNU Affero General Public License
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
-package org.zxg.network.dhtcrawler;
+package org.zxg.network.dhtcrawler.dht;
 
 /**
  *
  * @author Xianguang Zhou <xianguang.zhou@outlook.com>
  */
-public class MethodAndTime {
+@SuppressWarnings("serial")
+public class DhtArgumentException extends DhtException {
 
-    public String method;
-    public long time;
-
-    public MethodAndTime() {
-    }
-
-    public MethodAndTime(String method, long time) {
-        this.method = method;
-        this.time = time;
+    public DhtArgumentException(String name) {
+        super("missing or invalid dht argument:" + name);
     }
 }
@@ -23,4 +23,8 @@ package org.zxg.network.dhtcrawler.dht;
 public abstract class DhtReply extends DhtMsg {
 
     public byte[] nodeId;
+    /**
+     * The request this reply answers.
+     */
+    public DhtReq req;
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler.dht;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes the fixed shape DHT replies from precompiled templates, patching in
+ * only the transaction id, node id, token and compact nodes. The returned
+ * buffer is owned by the encoder and is overwritten by the next call, so an
+ * instance must stay confined to one thread.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+public class DhtReplyEncoder {
+
+    private static final byte[] REPLY_ID = bytes("d1:rd2:id20:");
+    private static final byte[] NODES = bytes("5:nodes");
+    private static final byte[] TOKEN = bytes("5:token");
+    private static final byte[] TID = bytes("e1:t");
+    private static final byte[] REPLY_TYPE = bytes("1:y1:re");
+
+    private ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    public ByteBuffer pingReply(byte[] tId, byte[] nodeId) {
+        begin(tId.length, 0);
+        buffer.put(REPLY_ID).put(nodeId, 0, 20);
+        return end(tId);
+    }
+
+    public ByteBuffer announcePeerReply(byte[] tId, byte[] nodeId) {
+        return pingReply(tId, nodeId);
+    }
+
+    public ByteBuffer findNodeReply(byte[] tId, byte[] nodeId, byte[] nodes,
+            int nodesOffset, int nodesLength) {
+        begin(tId.length, nodesLength);
+        buffer.put(REPLY_ID).put(nodeId, 0, 20);
+        putString(NODES, nodes, nodesOffset, nodesLength);
+        return end(tId);
+    }
+
+    public ByteBuffer getPeersReply(byte[] tId, byte[] nodeId, byte[] token,
+            byte[] nodes, int nodesOffset, int nodesLength) {
+        begin(tId.length, nodesLength + token.length);
+        buffer.put(REPLY_ID).put(nodeId, 0, 20);
+        putString(NODES, nodes, nodesOffset, nodesLength);
+        putString(TOKEN, token, 0, token.length);
+        return end(tId);
+    }
+
+    private void begin(int tIdLength, int variableLength) {
+        int required = tIdLength + variableLength + 128;
+        if (buffer.capacity() < required) {
+            buffer = ByteBuffer.allocate(required);
+        }
+        buffer.clear();
+    }
+
+    private ByteBuffer end(byte[] tId) {
+        buffer.put(TID);
+        putLength(tId.length);
+        buffer.put(tId);
+        buffer.put(REPLY_TYPE);
+        buffer.flip();
+        return buffer;
+    }
+
+    private void putString(byte[] key, byte[] value, int offset, int length) {
+        buffer.put(key);
+        putLength(length);
+        buffer.put(value, offset, length);
+    }
+
+    private void putLength(int length) {
+        int divisor = 1;
+        while (divisor <= length / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + (length / divisor) % 10));
+        }
+        buffer.put((byte) ':');
+    }
+}
@@ -23,4 +23,17 @@ package org.zxg.network.dhtcrawler.dht;
 public abstract class DhtReq extends DhtMsg {
 
     public byte[] nodeId;
+    /**
+     * Id of the queried node if it is known, so that a timeout can be charged
+     * to it.
+     */
+    public byte[] remoteNodeId;
+    /**
+     * How many times the request has been sent.
+     */
+    public int attempts;
+    /**
+     * Sender state to pick up again when the reply or the timeout comes.
+     */
+    public Object context;
 }
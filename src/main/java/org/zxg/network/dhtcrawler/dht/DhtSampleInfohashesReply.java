@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler.dht;
+
+import java.util.List;
+
+/**
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+public class DhtSampleInfohashesReply extends DhtReply {
+
+    /**
+     * Seconds the node asks us to wait before sampling it again.
+     */
+    public int interval;
+    /**
+     * Number of infohashes the node stores.
+     */
+    public int num;
+    public List<byte[]> samples;
+    public List<CompactNodeInfo> nodes;
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2014 Xianguang Zhou <xianguang.zhou@outlook.com>
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
  *
  * This program is free software: you can redistribute it and/or modify
  * it under the terms of the GNU Affero General Public License as published by
@@ -14,13 +14,14 @@
  * You should have received a copy of the GNU Affero General Public License
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
-package org.zxg.network.dhtcrawler;
+package org.zxg.network.dhtcrawler.dht;
 
 /**
+ * BEP 51 request for a sample of the infohashes a node stores.
  *
  * @author Xianguang Zhou <xianguang.zhou@outlook.com>
  */
-public class GetPeersTokenAndTime {
-    public byte[] token;
-    public long time;
+public class DhtSampleInfohashesReq extends DhtReq {
+
+    public byte[] targetNodeId;
 }
@@ -18,6 +18,7 @@ package org.zxg.network.dhtcrawler.krpc;
 
 import com.turn.ttorrent.bcodec.BEValue;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 import org.zxg.network.dhtcrawler.Addr;
@@ -30,8 +31,25 @@ import org.zxg.network.dhtcrawler.Util;
  */
 public abstract class Krpc {
 
+    private final ThreadLocal<KrpcDecoder> decoders = ThreadLocal.withInitial(KrpcDecoder::new);
+    private volatile KrpcFilter filter;
+
+    public KrpcFilter getFilter() {
+        return filter;
+    }
+
+    public void setFilter(KrpcFilter filter) {
+        this.filter = filter;
+    }
+
     protected abstract void sendUdp(UdpMsg msg) throws IOException;
 
+    /**
+     * Sends the bytes between the position and the limit of the buffer. The
+     * buffer may be reused by the caller as soon as this method returns.
+     */
+    protected abstract void sendUdp(Addr addr, ByteBuffer data) throws IOException;
+
     protected abstract UdpMsg recvUdp() throws IOException;
 
     private void sendKrpc(BEValue data, Addr addr) throws IOException {
@@ -51,9 +69,10 @@ public abstract class Krpc {
         data.getMap().put("q", new BEValue(msg.method));
         data.getMap().put("a", new BEValue(msg.arguments));
 
-        byte[] transactionId = generateTransactionId();
-        msg.tId = transactionId;
-        data.getMap().put("t", new BEValue(transactionId));
+        if (msg.tId == null) {
+            msg.tId = generateTransactionId();
+        }
+        data.getMap().put("t", new BEValue(msg.tId));
         data.getMap().put("y", new BEValue("q"));
 
         sendKrpc(data, msg.addr);
@@ -84,39 +103,54 @@ public abstract class Krpc {
         sendKrpc(data, msg.addr);
     }
 
-    protected final KrpcMsg recvKrpc() throws IOException, KrpcMsgTypeException {
-        UdpMsg udpMsg = recvUdp();
+    /**
+     * Decodes a received datagram. The fields of the returned message read
+     * from the datagram buffer, so it must not be released before the message
+     * has been consumed.
+     *
+     * @return null if the datagram was dropped by the filter
+     */
+    protected final KrpcMsg decodeKrpc(UdpMsg udpMsg) throws KrpcMsgTypeException,
+            KrpcDecodeException {
+        KrpcDecoder decoder = decoders.get();
+        KrpcFilter currentFilter = filter;
+        if (currentFilter != null) {
+            decoder.scan(udpMsg.buffer);
+            if (!currentFilter.accept(udpMsg.addr, decoder)) {
+                return null;
+            }
+        }
 
-        BEValue data = Util.bdecode(udpMsg.data, 0, udpMsg.data.length);
+        decoder.decode(udpMsg.buffer);
         KrpcMsg krpcMsg;
-        String msgType = data.getMap().get("y").getString();
-        switch (msgType) {
-            case "r": {
-                KrpcReply krpcReply = new KrpcReply();
-                krpcReply.replies = data.getMap().get("r").getMap();
-                krpcMsg = krpcReply;
+        switch (decoder.type()) {
+            case 'r': {
+                krpcMsg = new KrpcReply();
             }
             break;
-            case "q": {
+            case 'q': {
                 KrpcReq krpcReq = new KrpcReq();
-                krpcReq.method = data.getMap().get("q").getString();
-                krpcReq.arguments = data.getMap().get("a").getMap();
+                krpcReq.method = decoder.method();
                 krpcMsg = krpcReq;
             }
             break;
-            case "e": {
+            case 'e': {
                 KrpcError krpcError = new KrpcError();
-                krpcError.num = data.getMap().get("e").getList().get(0).getInt();
-                krpcError.msg = data.getMap().get("e").getList().get(1).getString();
+                krpcError.num = (int) decoder.errorNum;
+                krpcError.msg = decoder.string(decoder.errorMsgOffset, decoder.errorMsgLength);
                 krpcMsg = krpcError;
             }
             break;
             default:
-                throw new KrpcMsgTypeException(msgType);
+                throw new KrpcMsgTypeException(decoder.string(decoder.yOffset, decoder.yLength));
         }
 
+        if (decoder.tOffset < 0) {
+            throw new KrpcDecodeException("missing transaction id");
+        }
         krpcMsg.addr = udpMsg.addr;
-        krpcMsg.tId = data.getMap().get("t").getBytes();
+        krpcMsg.tId = decoder.bytes(decoder.tOffset, decoder.tLength);
+        krpcMsg.decoder = decoder;
 
         return krpcMsg;
     }
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler.krpc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single pass bencode decoder for KRPC messages. It walks the datagram in
+ * place and only records the offset and length of the fields the DHT layer
+ * reads, so no value tree and no key strings are built. An instance is reused
+ * for every datagram and is not thread safe.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+public class KrpcDecoder {
+
+    public static final int MAX_VALUES = 256;
+
+    private static final int MAX_DEPTH = 32;
+
+    private static final byte[] KEY_ID = bytes("id");
+    private static final byte[] KEY_TARGET = bytes("target");
+    private static final byte[] KEY_INFO_HASH = bytes("info_hash");
+    private static final byte[] KEY_TOKEN = bytes("token");
+    private static final byte[] KEY_NODES = bytes("nodes");
+    private static final byte[] KEY_VALUES = bytes("values");
+    private static final byte[] KEY_PORT = bytes("port");
+    private static final byte[] KEY_IMPLIED_PORT = bytes("implied_port");
+    private static final byte[] KEY_SAMPLES = bytes("samples");
+    private static final byte[] KEY_INTERVAL = bytes("interval");
+    private static final byte[] KEY_NUM = bytes("num");
+
+    private static final String[] METHODS = {"ping", "find_node", "get_peers", "announce_peer",
+        "sample_infohashes"};
+    private static final byte[][] METHOD_BYTES = new byte[METHODS.length][];
+
+    static {
+        for (int i = 0; i < METHODS.length; i++) {
+            METHOD_BYTES[i] = bytes(METHODS[i]);
+        }
+    }
+
+    public ByteBuffer buffer;
+
+    public int tOffset, tLength;
+    public int yOffset, yLength;
+    public int qOffset, qLength;
+    public int idOffset, idLength;
+    public int targetOffset, targetLength;
+    public int infoHashOffset, infoHashLength;
+    public int tokenOffset, tokenLength;
+    public int nodesOffset, nodesLength;
+    public int errorMsgOffset, errorMsgLength;
+    public int samplesOffset, samplesLength;
+
+    public long port;
+    public boolean hasPort;
+    public long impliedPort;
+    public long interval;
+    public long num;
+    public long errorNum;
+    public boolean hasErrorNum;
+
+    public final int[] valueOffsets = new int[MAX_VALUES];
+    public final int[] valueLengths = new int[MAX_VALUES];
+    public int valuesCount;
+    public boolean hasValues;
+
+    private int position;
+    private int limit;
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Decodes the bytes between the position and the limit of the buffer. The
+     * buffer itself is left untouched and must not be modified while the
+     * recorded fields are being read.
+     */
+    public void decode(ByteBuffer buffer) throws KrpcDecodeException {
+        decode(buffer, true);
+    }
+
+    /**
+     * Records only the top level t, y and q fields; the argument, reply and
+     * error values are skipped without being looked into. Used to classify a
+     * datagram before paying for the full decode.
+     */
+    public void scan(ByteBuffer buffer) throws KrpcDecodeException {
+        decode(buffer, false);
+    }
+
+    private void decode(ByteBuffer buffer, boolean full) throws KrpcDecodeException {
+        reset();
+        this.buffer = buffer;
+        this.position = buffer.position();
+        this.limit = buffer.limit();
+        expect('d');
+        while (peek() != 'e') {
+            int keyLength = readStringLength();
+            int keyOffset = position;
+            position += keyLength;
+            if (keyLength == 1 && isString()) {
+                switch (buffer.get(keyOffset)) {
+                    case 't':
+                        tLength = readStringLength();
+                        tOffset = position;
+                        position += tLength;
+                        continue;
+                    case 'y':
+                        yLength = readStringLength();
+                        yOffset = position;
+                        position += yLength;
+                        continue;
+                    case 'q':
+                        qLength = readStringLength();
+                        qOffset = position;
+                        position += qLength;
+                        continue;
+                    default:
+                        break;
+                }
+            } else if (!full) {
+                skipValue(0);
+                continue;
+            } else if (keyLength == 1 && peek() == 'd') {
+                byte key = buffer.get(keyOffset);
+                if (key == 'a' || key == 'r') {
+                    decodeBody();
+                    continue;
+                }
+            } else if (keyLength == 1 && peek() == 'l' && buffer.get(keyOffset) == 'e') {
+                decodeError();
+                continue;
+            }
+            skipValue(0);
+        }
+        position++;
+    }
+
+    public void decode(byte[] data, int offset, int length) throws KrpcDecodeException {
+        decode(ByteBuffer.wrap(data, offset, length));
+    }
+
+    private void reset() {
+        tOffset = yOffset = qOffset = idOffset = targetOffset = infoHashOffset = -1;
+        tokenOffset = nodesOffset = errorMsgOffset = samplesOffset = -1;
+        tLength = yLength = qLength = idLength = targetLength = infoHashLength = 0;
+        tokenLength = nodesLength = errorMsgLength = samplesLength = 0;
+        port = impliedPort = errorNum = interval = num = 0;
+        hasPort = hasErrorNum = hasValues = false;
+        valuesCount = 0;
+    }
+
+    private void decodeBody() throws KrpcDecodeException {
+        expect('d');
+        while (peek() != 'e') {
+            int keyLength = readStringLength();
+            int keyOffset = position;
+            position += keyLength;
+            if (isString()) {
+                int length = readStringLength();
+                int offset = position;
+                position += length;
+                if (equals(keyOffset, keyLength, KEY_ID)) {
+                    idOffset = offset;
+                    idLength = length;
+                } else if (equals(keyOffset, keyLength, KEY_TARGET)) {
+                    targetOffset = offset;
+                    targetLength = length;
+                } else if (equals(keyOffset, keyLength, KEY_INFO_HASH)) {
+                    infoHashOffset = offset;
+                    infoHashLength = length;
+                } else if (equals(keyOffset, keyLength, KEY_TOKEN)) {
+                    tokenOffset = offset;
+                    tokenLength = length;
+                } else if (equals(keyOffset, keyLength, KEY_NODES)) {
+                    nodesOffset = offset;
+                    nodesLength = length;
+                } else if (equals(keyOffset, keyLength, KEY_SAMPLES)) {
+                    samplesOffset = offset;
+                    samplesLength = length;
+                }
+            } else if (peek() == 'i' && equals(keyOffset, keyLength, KEY_PORT)) {
+                port = readInt();
+                hasPort = true;
+            } else if (peek() == 'i' && equals(keyOffset, keyLength, KEY_IMPLIED_PORT)) {
+                impliedPort = readInt();
+            } else if (peek() == 'i' && equals(keyOffset, keyLength, KEY_INTERVAL)) {
+                interval = readInt();
+            } else if (peek() == 'i' && equals(keyOffset, keyLength, KEY_NUM)) {
+                num = readInt();
+            } else if (peek() == 'l' && equals(keyOffset, keyLength, KEY_VALUES)) {
+                decodeValues();
+            } else {
+                skipValue(1);
+            }
+        }
+        position++;
+    }
+
+    private void decodeValues() throws KrpcDecodeException {
+        expect('l');
+        hasValues = true;
+        while (peek() != 'e') {
+            if (isString() && valuesCount < MAX_VALUES) {
+                int length = readStringLength();
+                valueOffsets[valuesCount] = position;
+                valueLengths[valuesCount] = length;
+                valuesCount++;
+                position += length;
+            } else {
+                skipValue(2);
+            }
+        }
+        position++;
+    }
+
+    private void decodeError() throws KrpcDecodeException {
+        expect('l');
+        if (peek() == 'i') {
+            errorNum = readInt();
+            hasErrorNum = true;
+        }
+        if (isString()) {
+            errorMsgLength = readStringLength();
+            errorMsgOffset = position;
+            position += errorMsgLength;
+        }
+        while (peek() != 'e') {
+            skipValue(1);
+        }
+        position++;
+    }
+
+    private void skipValue(int depth) throws KrpcDecodeException {
+        if (depth > MAX_DEPTH) {
+            throw new KrpcDecodeException("nesting too deep");
+        }
+        byte c = peek();
+        if (c == 'i') {
+            readInt();
+        } else if (c == 'l' || c == 'd') {
+            position++;
+            while (peek() != 'e') {
+                if (c == 'd') {
+                    int keyLength = readStringLength();
+                    position += keyLength;
+                }
+                skipValue(depth + 1);
+            }
+            position++;
+        } else {
+            int length = readStringLength();
+            position += length;
+        }
+    }
+
+    private boolean isString() throws KrpcDecodeException {
+        byte c = peek();
+        return c >= '0' && c <= '9';
+    }
+
+    private byte peek() throws KrpcDecodeException {
+        if (position >= limit) {
+            throw new KrpcDecodeException("unexpected end of data");
+        }
+        return buffer.get(position);
+    }
+
+    private void expect(char c) throws KrpcDecodeException {
+        if (peek() != c) {
+            throw new KrpcDecodeException("expected '" + c + "' at " + position);
+        }
+        position++;
+    }
+
+    private int readStringLength() throws KrpcDecodeException {
+        long length = 0;
+        byte c;
+        int start = position;
+        while ((c = peek()) != ':') {
+            if (c < '0' || c > '9' || position - start > 9) {
+                throw new KrpcDecodeException("invalid string length at " + start);
+            }
+            length = length * 10 + (c - '0');
+            position++;
+        }
+        if (position == start) {
+            throw new KrpcDecodeException("invalid string length at " + start);
+        }
+        position++;
+        if (length > limit - position) {
+            throw new KrpcDecodeException("string exceeds data at " + start);
+        }
+        return (int) length;
+    }
+
+    private long readInt() throws KrpcDecodeException {
+        expect('i');
+        boolean negative = false;
+        if (peek() == '-') {
+            negative = true;
+            position++;
+        }
+        long value = 0;
+        byte c;
+        int start = position;
+        while ((c = peek()) != 'e') {
+            if (c < '0' || c > '9' || position - start > 18) {
+                throw new KrpcDecodeException("invalid integer at " + start);
+            }
+            value = value * 10 + (c - '0');
+            position++;
+        }
+        if (position == start) {
+            throw new KrpcDecodeException("invalid integer at " + start);
+        }
+        position++;
+        return negative ? -value : value;
+    }
+
+    public boolean equals(int offset, int length, byte[] expected) {
+        if (offset < 0 || length != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + i) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public byte[] bytes(int offset, int length) {
+        if (offset < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return bytes;
+    }
+
+    public String string(int offset, int length) {
+        if (offset < 0) {
+            return null;
+        }
+        return new String(bytes(offset, length), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the message type byte ('q', 'r' or 'e'), or 0 when it is absent
+     * or longer than one byte
+     */
+    public byte type() {
+        return yLength == 1 ? buffer.get(yOffset) : 0;
+    }
+
+    /**
+     * @return the request method, shared with other messages when it is one
+     * of the known DHT methods
+     */
+    public String method() {
+        for (int i = 0; i < METHODS.length; i++) {
+            if (equals(qOffset, qLength, METHOD_BYTES[i])) {
+                return METHODS[i];
+            }
+        }
+        return string(qOffset, qLength);
+    }
+}
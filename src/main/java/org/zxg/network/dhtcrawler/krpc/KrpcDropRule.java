@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler.krpc;
+
+import org.zxg.network.dhtcrawler.Addr;
+
+/**
+ * Decides from the pre-scanned t, y and q fields whether a datagram is worth
+ * a full decode.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+@FunctionalInterface
+public interface KrpcDropRule {
+
+    boolean drop(Addr addr, KrpcDecoder scanned);
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 Xianguang Zhou <xianguang.zhou@outlook.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.zxg.network.dhtcrawler.krpc;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import org.zxg.network.dhtcrawler.Addr;
+
+/**
+ * Early drop stage applied to pre-scanned datagrams. Rules are checked in the
+ * order they were added and every rule counts the datagrams it dropped.
+ *
+ * @author Xianguang Zhou <xianguang.zhou@outlook.com>
+ */
+public class KrpcFilter {
+
+    private static final byte[] PING = {'p', 'i', 'n', 'g'};
+
+    private final List<Entry> entries = new CopyOnWriteArrayList<>();
+    private final LongAdder accepted = new LongAdder();
+
+    public static KrpcDropRule errors() {
+        return (addr, scanned) -> scanned.type() == 'e';
+    }
+
+    public static KrpcDropRule pingsWhen(BooleanSupplier overloaded) {
+        return (addr, scanned) -> scanned.type() == 'q'
+                && scanned.equals(scanned.qOffset, scanned.qLength, PING)
+                && overloaded.getAsBoolean();
+    }
+
+    public void addRule(String name, KrpcDropRule rule) {
+        entries.add(new Entry(name, rule));
+    }
+
+    public boolean accept(Addr addr, KrpcDecoder scanned) {
+        for (Entry entry : entries) {
+            if (entry.rule.drop(addr, scanned)) {
+                entry.dropped.increment();
+                return false;
+            }
+        }
+        accepted.increment();
+        return true;
+    }
+
+    public long acceptedCount() {
+        return accepted.sum();
+    }
+
+    public long receivedCount() {
+        long count = accepted.sum();
+        for (Entry entry : entries) {
+            count += entry.dropped.sum();
+        }
+        return count;
+    }
+
+    public long droppedCount(String name) {
+        for (Entry entry : entries) {
+            if (entry.name.equals(name)) {
+                return entry.dropped.sum();
+            }
+        }
+        return 0;
+    }
+
+    public Map<String, Long> droppedCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        entries.forEach((entry) -> {
+            counts.put(entry.name, entry.dropped.sum());
+        });
+        return counts;
+    }
+
+    private static class Entry {
+
+        private final String name;
+        private final KrpcDropRule rule;
+        private final LongAdder dropped = new LongAdder();
+
+        private Entry(String name, KrpcDropRule rule) {
+            this.name = name;
+            this.rule = rule;
+        }
+    }
+}
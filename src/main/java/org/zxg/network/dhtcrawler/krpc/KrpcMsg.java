@@ -26,4 +26,9 @@ public abstract class KrpcMsg {
 
     public Addr addr;
     public byte[] tId;
+    /**
+     * Fields of a received message, valid until the receiving thread decodes
+     * its next datagram.
+     */
+    public KrpcDecoder decoder;
 }